@@ -0,0 +1,584 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.*;
+
+/**
+ * <p>A sorted set of messages backed by growable arrays. Message ids are issued by the server in increasing order,
+ * so new messages are nearly always appended to the tail in constant time. Lookups and out-of-order inserts use
+ * binary search on packed message ids. Oldest messages are removed in constant time by advancing the head index.</p>
+ *
+ * <p>Subclasses provide the storage. Positions passed to the storage methods are physical array indices.</p>
+ *
+ * <p>Like TreeSet, this class is not synchronized. Subsets are live views.</p>
+ */
+public abstract class AbstractMessageArray extends AbstractSet<Message> implements SortedSet<Message> {
+	protected static final int INITIAL_CAPACITY = 16;
+
+	/** Index of the first element */
+	private int head;
+
+	/** Index after the last element */
+	private int tail;
+
+	private int modCount;
+
+	/**
+	 * @return length of the storage arrays
+	 */
+	protected abstract int capacity();
+
+	/**
+	 * Replaces storage with larger arrays. Elements <code>[from, from + length)</code> are copied to the beginning.
+	 */
+	protected abstract void reallocate(int capacity, int from, int length);
+
+	/**
+	 * Moves elements like System.arraycopy does. Ranges may overlap.
+	 */
+	protected abstract void move(int from, int to, int length);
+
+	/**
+	 * Releases references held by elements <code>[from, to)</code>.
+	 */
+	protected abstract void release(int from, int to);
+
+	/**
+	 * Stores a message
+	 */
+	protected abstract void store(int index, Message message);
+
+	/**
+	 * Called before elements <code>[from, to)</code> are removed from the set. Unlike {@link #release(int, int)},
+	 * not called for slots whose elements have been moved elsewhere.
+	 */
+	protected void removed(int from, int to) { }
+
+	/**
+	 * Returns the message at the index. Subclasses may create a new view on every call.
+	 */
+	protected abstract Message load(int index);
+
+	/**
+	 * Compares id of the element at the index to the given id. See {@link Message#compareToId(long, String)}.
+	 */
+	protected abstract int compareAt(int index, long key, String fallback);
+
+	/**
+	 * @return physical index of the oldest message. Messages occupy <code>[head(), head() + size())</code>.
+	 */
+	protected int head() {
+		return head;
+	}
+
+	@Override
+	public int size() {
+		return tail - head;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return tail == head;
+	}
+
+	/**
+	 * Returns the message at the given position
+	 *
+	 * @param index position, zero being the oldest message
+	 */
+	public Message get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+		}
+		return load(head + index);
+	}
+
+	/**
+	 * Finds a message without allocating a probe.
+	 *
+	 * @param messageId message id
+	 * @return message or null if not found
+	 */
+	public Message find(String messageId) {
+		int i = IdCodec.isPackableMessageId(messageId) ?
+				search(IdCodec.encodeMessageId(messageId), null) : search(0, messageId);
+		return i >= 0 ? load(head + i) : null;
+	}
+
+	/**
+	 * Returns the physical index of a message or -1 if not found.
+	 */
+	protected int indexOf(Message message) {
+		int i = search(message);
+		return i >= 0 ? head + i : -1;
+	}
+
+	private int search(Message probe) {
+		return search(probe.idKey, probe.idString);
+	}
+
+	/**
+	 * Binary search by message id.
+	 *
+	 * @return position of the message or <code>(-(insertion point) - 1)</code>
+	 */
+	private int search(long key, String fallback) {
+		int low = 0;
+		int high = size() - 1;
+
+		// Fast path for the most recent messages
+		if (high >= 0 && compareAt(head + high, key, fallback) < 0) {
+			return -(high + 1) - 1;
+		}
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = compareAt(head + mid, key, fallback);
+
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+	private int compareAt(int index, Message message) {
+		return compareAt(index, message.idKey, message.idString);
+	}
+
+	/**
+	 * Returns the position of the first message whose id is equal to or greater than the id of the probe.
+	 */
+	private int lowerBound(Message probe) {
+		int i = search(probe);
+		return i >= 0 ? i : -(i + 1);
+	}
+
+	@Override
+	public boolean add(Message message) {
+		if (isEmpty() || compareAt(tail - 1, message) < 0) {
+			reserve(1);
+			store(tail++, message);
+			modCount++;
+			return true;
+		}
+
+		int i = search(message);
+		if (i >= 0) {
+			return false;
+		}
+
+		insertAt(-(i + 1), message);
+		return true;
+	}
+
+	private void insertAt(int index, Message message) {
+		reserve(1);
+
+		int at = head + index;
+		move(at, at + 1, tail - at);
+		store(at, message);
+		tail++;
+		modCount++;
+	}
+
+	/**
+	 * Makes room for additional elements at the tail. Compacts the storage if the head has advanced far enough and
+	 * grows it otherwise.
+	 */
+	private void reserve(int additional) {
+		int capacity = capacity();
+		if (tail + additional <= capacity) {
+			return;
+		}
+
+		int size = size();
+
+		if (size + additional > capacity / 2) {
+			reallocate(Math.max(capacity + (capacity >> 1), size + additional), head, size);
+
+		} else {
+			move(head, 0, size);
+			release(size, tail);
+		}
+
+		head = 0;
+		tail = size;
+	}
+
+	/**
+	 * Adds all messages. Sorted lists are merged as a single run.
+	 */
+	@Override
+	public boolean addAll(Collection<? extends Message> messages) {
+		if (messages instanceof List && isAscending((List<? extends Message>)messages)) {
+			return addSortedRun((List<? extends Message>)messages);
+		}
+
+		return super.addAll(messages);
+	}
+
+	private static boolean isAscending(List<? extends Message> run) {
+		Message previous = null;
+		for (Message m : run) {
+			if (previous != null && previous.compareTo(m) > 0) {
+				return false;
+			}
+			previous = m;
+		}
+		return true;
+	}
+
+	/**
+	 * Merges a run of messages that is sorted in ascending order. Duplicates are skipped.
+	 *
+	 * @param run sorted messages
+	 * @return true if the set changed
+	 */
+	public boolean addSortedRun(List<? extends Message> run) {
+		if (run.isEmpty()) {
+			return false;
+		}
+
+		if (isEmpty() || compareAt(tail - 1, run.get(0)) < 0) {
+			// The whole run goes after the tail
+			reserve(run.size());
+			Message previous = null;
+			for (Message m : run) {
+				if (previous == null || previous.compareTo(m) != 0) {
+					store(tail++, m);
+				}
+				previous = m;
+			}
+			modCount++;
+			return true;
+		}
+
+		// Pick new messages and merge them from the end backwards
+		List<Message> fresh = new ArrayList<Message>(run.size());
+		Message previous = null;
+		for (Message m : run) {
+			if ((previous == null || previous.compareTo(m) != 0) && search(m) < 0) {
+				fresh.add(m);
+			}
+			previous = m;
+		}
+
+		if (fresh.isEmpty()) {
+			return false;
+		}
+
+		reserve(fresh.size());
+
+		int i = tail - 1;
+		int j = fresh.size() - 1;
+		int k = tail - 1 + fresh.size();
+
+		while (j >= 0) {
+			Message m = fresh.get(j);
+			if (i >= head && compareAt(i, m) > 0) {
+				move(i--, k--, 1);
+			} else {
+				store(k--, m);
+				j--;
+			}
+		}
+
+		tail += fresh.size();
+		modCount++;
+
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Message && search((Message)o) >= 0;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof Message)) {
+			return false;
+		}
+
+		int i = search((Message)o);
+		if (i < 0) {
+			return false;
+		}
+
+		removeAt(i);
+		return true;
+	}
+
+	private void removeAt(int index) {
+		removed(head + index, head + index + 1);
+
+		if (index == 0) {
+			release(head, head + 1);
+			head++;
+
+		} else {
+			int at = head + index;
+			move(at + 1, at, tail - at - 1);
+			release(tail - 1, tail);
+			tail--;
+		}
+
+		if (head == tail) {
+			head = tail = 0;
+		}
+
+		modCount++;
+	}
+
+	/**
+	 * Removes oldest messages in constant time.
+	 *
+	 * @param count number of messages to remove
+	 * @return number of messages actually removed
+	 */
+	public int removeOldest(int count) {
+		int n = Math.min(count, size());
+		if (n <= 0) {
+			return 0;
+		}
+
+		removed(head, head + n);
+		release(head, head + n);
+		head += n;
+
+		if (head == tail) {
+			head = tail = 0;
+		}
+
+		modCount++;
+
+		return n;
+	}
+
+	@Override
+	public void clear() {
+		removed(head, tail);
+		release(head, tail);
+		head = tail = 0;
+		modCount++;
+	}
+
+	@Override
+	public Iterator<Message> iterator() {
+		return new Itr(0, -1);
+	}
+
+	@Override
+	public Comparator<? super Message> comparator() {
+		return null; // Natural ordering
+	}
+
+	@Override
+	public Message first() {
+		if (isEmpty()) throw new NoSuchElementException();
+		return load(head);
+	}
+
+	@Override
+	public Message last() {
+		if (isEmpty()) throw new NoSuchElementException();
+		return load(tail - 1);
+	}
+
+	@Override
+	public SortedSet<Message> subSet(Message fromElement, Message toElement) {
+		return new Range(fromElement, toElement);
+	}
+
+	@Override
+	public SortedSet<Message> headSet(Message toElement) {
+		return new Range(null, toElement);
+	}
+
+	@Override
+	public SortedSet<Message> tailSet(Message fromElement) {
+		return new Range(fromElement, null);
+	}
+
+	/**
+	 * Iterates positions from <code>start</code> to <code>end</code>. Negative end follows the size of the set.
+	 */
+	private class Itr implements Iterator<Message> {
+		private int cursor;
+		private int end;
+		private int lastReturned = -1;
+		private int expectedModCount = modCount;
+
+		Itr(int start, int end) {
+			this.cursor = start;
+			this.end = end;
+		}
+
+		private int end() {
+			return end < 0 ? size() : end;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return cursor < end();
+		}
+
+		@Override
+		public Message next() {
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (cursor >= end()) throw new NoSuchElementException();
+
+			lastReturned = cursor++;
+			return load(head + lastReturned);
+		}
+
+		@Override
+		public void remove() {
+			if (lastReturned < 0) throw new IllegalStateException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+
+			removeAt(lastReturned);
+			cursor = lastReturned;
+			lastReturned = -1;
+			if (end > 0) end--;
+			expectedModCount = modCount;
+		}
+	}
+
+	/**
+	 * A live view of messages from <code>from</code> (inclusive) to <code>to</code> (exclusive). Null bound is
+	 * unbounded.
+	 */
+	private class Range extends AbstractSet<Message> implements SortedSet<Message> {
+		private final Message from;
+		private final Message to;
+
+		Range(Message from, Message to) {
+			if (from != null && to != null && from.compareTo(to) > 0) {
+				throw new IllegalArgumentException("fromElement > toElement");
+			}
+			this.from = from;
+			this.to = to;
+		}
+
+		private int start() {
+			return from != null ? lowerBound(from) : 0;
+		}
+
+		private int end() {
+			return to != null ? lowerBound(to) : AbstractMessageArray.this.size();
+		}
+
+		private boolean inRange(Message m) {
+			return (from == null || m.compareTo(from) >= 0) && (to == null || m.compareTo(to) < 0);
+		}
+
+		@Override
+		public int size() {
+			return Math.max(end() - start(), 0);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override
+		public Iterator<Message> iterator() {
+			return new Itr(start(), end());
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return o instanceof Message && inRange((Message)o) && AbstractMessageArray.this.contains(o);
+		}
+
+		@Override
+		public boolean add(Message message) {
+			if (!inRange(message)) throw new IllegalArgumentException("Message out of range");
+			return AbstractMessageArray.this.add(message);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return o instanceof Message && inRange((Message)o) && AbstractMessageArray.this.remove(o);
+		}
+
+		@Override
+		public Comparator<? super Message> comparator() {
+			return null;
+		}
+
+		@Override
+		public Message first() {
+			int s = start();
+			if (s >= end()) throw new NoSuchElementException();
+			return load(head + s);
+		}
+
+		@Override
+		public Message last() {
+			int e = end();
+			if (e <= start()) throw new NoSuchElementException();
+			return load(head + e - 1);
+		}
+
+		@Override
+		public SortedSet<Message> subSet(Message fromElement, Message toElement) {
+			return new Range(max(from, fromElement), min(to, toElement));
+		}
+
+		@Override
+		public SortedSet<Message> headSet(Message toElement) {
+			return new Range(from, min(to, toElement));
+		}
+
+		@Override
+		public SortedSet<Message> tailSet(Message fromElement) {
+			return new Range(max(from, fromElement), to);
+		}
+	}
+
+	private static Message min(Message a, Message b) {
+		if (a == null) return b;
+		if (b == null) return a;
+		return a.compareTo(b) <= 0 ? a : b;
+	}
+
+	private static Message max(Message a, Message b) {
+		if (a == null) return b;
+		if (b == null) return a;
+		return a.compareTo(b) >= 0 ? a : b;
+	}
+}
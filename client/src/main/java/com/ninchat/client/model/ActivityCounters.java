@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts conversations of a session by type and activity status. Updated on every status transition, so the
+ * aggregates of {@link Session} are answered without iterating conversations.
+ */
+final class ActivityCounters {
+	private static final int CHANNEL = 0;
+	private static final int DIALOGUE = 1;
+
+	private final int[][] counts = new int[2][Conversation.ActivityStatus.values().length];
+
+	/** Status of each tracked conversation as last counted */
+	private final Map<Conversation, Conversation.ActivityStatus> statuses =
+			new HashMap<Conversation, Conversation.ActivityStatus>();
+
+	synchronized void add(Conversation conversation) {
+		if (statuses.containsKey(conversation)) return;
+
+		Conversation.ActivityStatus status = conversation.getActivityStatus();
+		statuses.put(conversation, status);
+		counts[type(conversation)][status.ordinal()]++;
+	}
+
+	synchronized void remove(Conversation conversation) {
+		Conversation.ActivityStatus status = statuses.remove(conversation);
+		if (status != null) {
+			counts[type(conversation)][status.ordinal()]--;
+		}
+	}
+
+	synchronized void update(Conversation conversation, Conversation.ActivityStatus status) {
+		Conversation.ActivityStatus previous = statuses.get(conversation);
+		if (previous == null || previous == status) return;
+
+		statuses.put(conversation, status);
+		counts[type(conversation)][previous.ordinal()]--;
+		counts[type(conversation)][status.ordinal()]++;
+	}
+
+	synchronized void clear() {
+		statuses.clear();
+		for (int[] c : counts) {
+			Arrays.fill(c, 0);
+		}
+	}
+
+	/**
+	 * @param dialogues true to count dialogues, false to count channels
+	 * @param status Activity status
+	 * @return number of conversations of the type that have the status
+	 */
+	synchronized int count(boolean dialogues, Conversation.ActivityStatus status) {
+		return counts[dialogues ? DIALOGUE : CHANNEL][status.ordinal()];
+	}
+
+	/**
+	 * @return number of conversations that have any activity
+	 */
+	synchronized int countActive() {
+		int active = 0;
+		for (int[] c : counts) {
+			for (int i = 0; i < c.length; i++) {
+				if (i != Conversation.ActivityStatus.NONE.ordinal()) {
+					active += c[i];
+				}
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Returns the most important status. UNREAD on a dialogue is counted as HIGHLIGHT.
+	 */
+	synchronized Conversation.ActivityStatus getActivityStatus() {
+		Conversation.ActivityStatus status = Conversation.ActivityStatus.NONE;
+
+		for (Conversation.ActivityStatus a : Conversation.ActivityStatus.values()) {
+			for (int type = CHANNEL; type <= DIALOGUE; type++) {
+				if (counts[type][a.ordinal()] == 0) continue;
+
+				Conversation.ActivityStatus effective = a;
+				if (a == Conversation.ActivityStatus.UNREAD && type == DIALOGUE) {
+					effective = Conversation.ActivityStatus.HIGHLIGHT;
+				}
+
+				if (effective.getPriority() > status.getPriority()) {
+					status = effective;
+				}
+			}
+		}
+
+		return status;
+	}
+
+	private static int type(Conversation conversation) {
+		return conversation instanceof Dialogue ? DIALOGUE : CHANNEL;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Loads the attributes of realms and dialogue peers after the session has been established. At most a fixed number
+ * of describes are in flight at a time, so that actions of the user are not queued behind the bulk. Describes are
+ * sent in priority order and a dialogue can be moved to the front while it is waiting.
+ * <p>
+ * The session is notified of progress after each completed describe and once when all of them have completed. A
+ * cancelled loader does not notify anything.
+ */
+final class AttributeLoader {
+	/** Realms are needed to group everything else */
+	static final int PRIORITY_REALM = 1;
+
+	/** Dialogues with unread messages */
+	static final int PRIORITY_ACTIVE = 2;
+
+	static final int PRIORITY_DEFAULT = 3;
+
+	/** Conversations that are being shown */
+	private static final int PRIORITY_VISIBLE = 0;
+
+	private enum Kind { REALM, REALM_QUEUES, USER }
+
+	private final Session session;
+	private final int maxInFlight;
+
+	private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+
+	private int sequence;
+	private int total;
+	private int loaded;
+	private int inFlight;
+
+	private boolean started;
+	private boolean pumping;
+	private boolean cancelled;
+	private boolean finished;
+
+	AttributeLoader(Session session, int maxInFlight) {
+		this.session = session;
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	synchronized void addRealm(Realm realm) {
+		add(new Task(Kind.REALM, realm.getId(), PRIORITY_REALM));
+		add(new Task(Kind.REALM_QUEUES, realm.getId(), PRIORITY_REALM));
+	}
+
+	synchronized void addDialogue(Dialogue dialogue, int priority) {
+		add(new Task(Kind.USER, dialogue.getPeer().getUserId(), priority));
+	}
+
+	private void add(Task task) {
+		task.sequence = sequence++;
+		queue.add(task);
+		total++;
+	}
+
+	/**
+	 * Moves the describe of the dialogue peer to the front of the queue if it has not been sent yet
+	 */
+	void prioritize(Dialogue dialogue) {
+		String userId = dialogue.getPeer().getUserId();
+
+		synchronized (this) {
+			for (Iterator<Task> i = queue.iterator(); i.hasNext(); ) {
+				Task task = i.next();
+				if (task.kind == Kind.USER && task.id.equals(userId)) {
+					i.remove();
+					task.priority = PRIORITY_VISIBLE;
+					task.sequence = -sequence++; // Most recently shown first
+					queue.add(task);
+					break;
+				}
+			}
+		}
+
+		pump();
+	}
+
+	void start() {
+		boolean empty;
+		synchronized (this) {
+			started = true;
+			empty = total == 0;
+			finished = empty;
+		}
+
+		if (empty) {
+			session.attributesLoaded(this);
+		} else {
+			pump();
+		}
+	}
+
+	synchronized void cancel() {
+		cancelled = true;
+		queue.clear();
+	}
+
+	synchronized int getTotal() {
+		return total;
+	}
+
+	synchronized int getLoaded() {
+		return loaded;
+	}
+
+	private void pump() {
+		synchronized (this) {
+			if (pumping || !started) return;
+			pumping = true;
+		}
+
+		while (true) {
+			Task task;
+			synchronized (this) {
+				if (cancelled || inFlight >= maxInFlight || (task = queue.poll()) == null) {
+					pumping = false;
+					return;
+				}
+				inFlight++;
+			}
+
+			send(task);
+		}
+	}
+
+	private void send(Task task) {
+		switch (task.kind) {
+			case REALM:
+				Realm realm = session.getRealms().get(task.id);
+				if (realm == null || realm.isDescribed()) {
+					done();
+				} else {
+					session.describeRealm(task.id, task);
+				}
+				break;
+
+			case REALM_QUEUES:
+				session.describeRealmQueues(task.id, task);
+				break;
+
+			case USER:
+				User user = session.findUser(task.id);
+				if (user != null && user.isLoaded()) {
+					done();
+				} else {
+					session.describeUser(task.id, task);
+				}
+				break;
+		}
+	}
+
+	private void done() {
+		int l;
+		int t;
+		boolean last;
+
+		synchronized (this) {
+			inFlight--;
+			if (cancelled) return;
+
+			l = ++loaded;
+			t = total;
+			last = l == t && !finished;
+			if (last) finished = true;
+		}
+
+		session.attributesProgress(this, l, t);
+		pump();
+
+		if (last) {
+			session.attributesLoaded(this);
+		}
+	}
+
+	private class Task extends SimpleAckListener implements Comparable<Task> {
+		private final Kind kind;
+		private final String id;
+		private int priority;
+		private int sequence;
+
+		private Task(Kind kind, String id, int priority) {
+			this.kind = kind;
+			this.id = id;
+			this.priority = priority;
+		}
+
+		@Override
+		public void onReady(boolean success) {
+			done();
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			if (priority != o.priority) return priority < o.priority ? -1 : 1;
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+}
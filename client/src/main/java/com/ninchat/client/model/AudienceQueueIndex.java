@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Keeps audience queues of a session sorted by realm and name, ignoring case, together with running totals of
+ * queue lengths per realm and for the whole session.</p>
+ *
+ * <p>Queues are repositioned and totals adjusted when {@link #update(AudienceQueue)} is called after the attributes
+ * of a queue have been imported. Readers get an immutable snapshot, which is rebuilt only after the order or
+ * membership changes.</p>
+ */
+final class AudienceQueueIndex {
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<AudienceQueue, Entry> entriesByQueue = new HashMap<AudienceQueue, Entry>();
+
+	/** Realm names as captured when queues were positioned. Shared by all entries of a realm. */
+	private final Map<Realm, RealmKey> realmKeys = new HashMap<Realm, RealmKey>();
+
+	/** Total length of queues without a realm */
+	private int noRealmLength;
+	private int totalLength;
+
+	private volatile List<AudienceQueue> snapshot = Collections.emptyList();
+
+	synchronized void add(AudienceQueue queue) {
+		if (entriesByQueue.containsKey(queue)) return;
+
+		Entry entry = createEntry(queue);
+		insert(entry);
+		entriesByQueue.put(queue, entry);
+		addLength(entry, entry.length);
+		snapshot = null;
+	}
+
+	synchronized void remove(AudienceQueue queue) {
+		Entry entry = entriesByQueue.remove(queue);
+		if (entry == null) return;
+
+		entries.remove(indexOf(entry));
+		addLength(entry, -entry.length);
+		snapshot = null;
+	}
+
+	/**
+	 * Takes the current name, realm and length of the queue into account
+	 */
+	synchronized void update(AudienceQueue queue) {
+		Entry entry = entriesByQueue.get(queue);
+		if (entry == null) return;
+
+		Entry updated = createEntry(queue);
+		if (updated.compareTo(entry) == 0) {
+			if (updated.length != entry.length) {
+				addLength(entry, updated.length - entry.length);
+				entry.length = updated.length;
+			}
+			return;
+		}
+
+		entries.remove(indexOf(entry));
+		addLength(entry, -entry.length);
+
+		insert(updated);
+		entriesByQueue.put(queue, updated);
+		addLength(updated, updated.length);
+		snapshot = null;
+	}
+
+	/**
+	 * Repositions queues of the realm if the realm has been renamed
+	 */
+	synchronized void update(Realm realm) {
+		RealmKey key = realmKeys.get(realm);
+		if (key == null || key.name.equals(realm.getName())) return;
+
+		// Queues of the realm are taken out while the key changes
+		List<Entry> affected = new ArrayList<Entry>();
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext(); ) {
+			Entry entry = i.next();
+			if (entry.realm == key) {
+				affected.add(entry);
+				i.remove();
+			}
+		}
+
+		key.name = realm.getName();
+
+		for (Entry entry : affected) {
+			insert(entry);
+		}
+
+		snapshot = null;
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		entriesByQueue.clear();
+		realmKeys.clear();
+		noRealmLength = 0;
+		totalLength = 0;
+		snapshot = Collections.emptyList();
+	}
+
+	/**
+	 * @return an immutable list of queues in display order
+	 */
+	List<AudienceQueue> snapshot() {
+		List<AudienceQueue> s = snapshot;
+		if (s != null) return s;
+
+		synchronized (this) {
+			if (snapshot == null) {
+				List<AudienceQueue> queues = new ArrayList<AudienceQueue>(entries.size());
+				for (Entry entry : entries) {
+					queues.add(entry.queue);
+				}
+				snapshot = Collections.unmodifiableList(queues);
+			}
+			return snapshot;
+		}
+	}
+
+	synchronized int getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * @param realm A realm or null for queues that don't belong to any realm
+	 */
+	synchronized int getTotalLength(Realm realm) {
+		if (realm == null) return noRealmLength;
+
+		RealmKey key = realmKeys.get(realm);
+		return key != null ? key.length : 0;
+	}
+
+	private void addLength(Entry entry, int difference) {
+		totalLength += difference;
+		if (entry.realm != null) {
+			entry.realm.length += difference;
+		} else {
+			noRealmLength += difference;
+		}
+	}
+
+	private Entry createEntry(AudienceQueue queue) {
+		RealmKey realmKey = null;
+
+		Realm realm = queue.getRealm();
+		if (realm != null) {
+			realmKey = realmKeys.get(realm);
+			if (realmKey == null) {
+				realmKey = new RealmKey(realm);
+				realmKeys.put(realm, realmKey);
+			}
+		}
+
+		return new Entry(queue, realmKey);
+	}
+
+	private void insert(Entry entry) {
+		int index = Collections.binarySearch(entries, entry);
+		entries.add(index < 0 ? -index - 1 : index, entry);
+	}
+
+	private int indexOf(Entry entry) {
+		int index = Collections.binarySearch(entries, entry);
+		assert index >= 0 && entries.get(index) == entry;
+		return index;
+	}
+
+	private static final class RealmKey {
+		final String id;
+		String name;
+
+		/** Total length of queues in the realm */
+		int length;
+
+		RealmKey(Realm realm) {
+			id = realm.getId();
+			name = realm.getName();
+		}
+
+		int compareTo(RealmKey other) {
+			if (this == other) return 0;
+
+			int c = name.compareToIgnoreCase(other.name);
+			return c != 0 ? c : id.compareTo(other.id);
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final AudienceQueue queue;
+
+		final RealmKey realm;
+		final String name;
+		final String id;
+
+		/** Not a sort key */
+		int length;
+
+		Entry(AudienceQueue queue, RealmKey realm) {
+			this.queue = queue;
+			this.realm = realm;
+
+			String n = queue.getName();
+			name = n != null ? n : "";
+			id = queue.getId();
+			length = queue.getLength();
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if (realm != other.realm) {
+				if (realm == null) return -1;
+				if (other.realm == null) return 1;
+				return realm.compareTo(other.realm);
+			}
+
+			int c = name.compareToIgnoreCase(other.name);
+			if (c != 0) return c;
+
+			return id.compareTo(other.id);
+		}
+	}
+}
@@ -32,8 +32,9 @@ import com.ninchat.client.transport.actions.PartChannel;
 import com.ninchat.client.transport.attributes.ChannelAttrs;
 import com.ninchat.client.transport.parameters.ChannelMembers;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Logger;
@@ -44,7 +45,7 @@ import java.util.logging.Logger;
 public class Channel extends Conversation {
 	private final static Logger logger = Logger.getLogger(Channel.class.getName());
 
-	protected final Map<String, Member> members = new HashMap<String, Member>();
+	protected final Map<String, Member> members = new MemberMap(this);
 
 	protected final Collection<ChannelListener> channelListeners = new CopyOnWriteArraySet<ChannelListener>();
 
@@ -60,30 +61,41 @@ public class Channel extends Conversation {
 	/** If channel has imported result of DescribeChannel */
 	private boolean described = false;
 
-	private final SessionListener sessionListener = new SessionListener() {
-		@Override
-		public void onUserUpdated(Session session, User user) {
-			Member member = members.get(user.getUserId());
-
-			if (member != null) {
-				for (ChannelListener channelListener : channelListeners) {
-					channelListener.onMemberUpdated(Channel.this, member);
-				}
-			}
-		}
-	};
-
 	public Channel(Session session, String id, Realm realm) {
 		super(session, id, new WrappedId(id));
 		this.realm = realm;
+	}
+
+	MemberMap memberMap() {
+		return (MemberMap)members;
+	}
 
-		if (session != null) {
-			session.addSessionListener(sessionListener); // TODO: removal when channel is removed
+	/**
+	 * Large channels are not kept in the membership index. Session checks them with {@link #containsMember}.
+	 */
+	private void indexMember(String userId) {
+		if (session != null && !memberMap().isCompact()) {
+			session.getMembershipIndex().add(userId, this);
 		}
 	}
 
-	void unregisterSessionListener() {
-		session.removeSessionListener(sessionListener);
+	boolean containsMember(String userId) {
+		synchronized (members) {
+			return members.containsKey(userId);
+		}
+	}
+
+	/**
+	 * Called by session when attributes of a member's user have been updated
+	 */
+	void onUserUpdated(User user) {
+		Member member = members.get(user.getUserId());
+
+		if (member != null) {
+			for (ChannelListener channelListener : channelListeners) {
+				channelListener.onMemberUpdated(this, member);
+			}
+		}
 	}
 
 	public void addChannelListener(ChannelListener channelAdapter) {
@@ -98,12 +110,19 @@ public class Channel extends Conversation {
 		return channelListeners;
 	}
 
+	/**
+	 * Returns members of the channel. In single-writer mode the map is an immutable snapshot.
+	 */
 	public Map<String, Member> getMembers() {
+		if (session != null && session.isSingleWriter()) {
+			return memberMap().snapshot();
+		}
 		return members;
 	}
 
 	boolean updateMember(Member member) {
 		members.put(member.getUser().getUserId(), member); // TODO: Identity check
+		indexMember(member.getUser().getUserId());
 
 		for (ChannelListener channelListener : channelListeners) {
 			channelListener.onMemberUpdated(this, member);
@@ -116,6 +135,8 @@ public class Channel extends Conversation {
 		Member member = members.remove(userId);
 
 		if (member != null) {
+			if (session != null) session.getMembershipIndex().remove(userId, this);
+
 			for (ChannelListener channelListener : channelListeners) {
 				channelListener.onMemberParted(this, member);
 			}
@@ -128,6 +149,8 @@ public class Channel extends Conversation {
 	boolean addMember(Member member) {
 		synchronized (members) {
 			members.put(member.getUser().getUserId(), member);
+			indexMember(member.getUser().getUserId());
+			memberMap().compactIfLarger(members.size());
 		}
 
 		for (ChannelListener channelListener : channelListeners) {
@@ -144,40 +167,175 @@ public class Channel extends Conversation {
 		accessPrivate = attrs.getPrivate();
 		accessPublic = attrs.getPublic();
 		suspended = attrs.getSuspended();
+
+		if (session != null) session.reposition(this);
 	}
 
 	public boolean isDescribed() {
 		return described;
 	}
 
-	void importChannelMembers(ChannelMembers channelMembers) {
+	/**
+	 * Synchronizes members with the given list. Only differences are applied: new members are added, missing ones
+	 * removed and existing ones updated in place. {@link MemberBatchListener}s are told about the changes.
+	 * <p>
+	 * Channels that are larger than the session's compact member threshold keep their members in a
+	 * {@link CompactMemberTable}. Users that the session doesn't know yet are not created for their members.
+	 *
+	 * @return true if anything changed
+	 */
+	boolean importChannelMembers(ChannelMembers channelMembers) {
 		described = true; // TODO: Not sure if this is right place
 
+		List<Member> joined = new ArrayList<Member>();
+		List<Member> parted = new ArrayList<Member>();
+		List<Member> updated = new ArrayList<Member>();
+
+		boolean batch = false;
+		for (ChannelListener channelListener : channelListeners) {
+			batch |= channelListener instanceof MemberBatchListener;
+		}
+
 		synchronized (members) {
-			members.clear();
+			CompactMemberTable table = memberMap().compactIfLarger(channelMembers.size());
+			if (table != null) {
+				boolean changed = importCompactMembers(table, channelMembers, batch, joined, parted, updated);
+				memberMap().changed();
 
-			for (Map.Entry<String, ChannelMembers.Parameters> entry : channelMembers.entrySet()) {
-				String userId = entry.getKey();
-				ChannelMembers.Parameters parameters = entry.getValue();
+				if (!changed) {
+					return false;
+				}
+			} else {
+				importMembers(channelMembers, joined, parted, updated);
 
-				User user = session.getOrCreateUser(userId);
-				user.importUserAttrs(parameters.getUserAttrs());
+				if (joined.isEmpty() && parted.isEmpty() && updated.isEmpty()) {
+					return false;
+				}
+			}
+		}
+
+		if (batch) {
+			for (ChannelListener channelListener : channelListeners) {
+				if (channelListener instanceof MemberBatchListener) {
+					((MemberBatchListener)channelListener).onMembersChanged(this, joined, parted, updated);
+				}
+			}
+		}
 
-				Member membership = new Member(user);
+		return true;
+	}
+
+	/**
+	 * Diffs members held in a HashMap
+	 */
+	private void importMembers(ChannelMembers channelMembers, List<Member> joined, List<Member> parted,
+	                           List<Member> updated) {
+		List<String> partedIds = new ArrayList<String>();
+		for (String userId : members.keySet()) {
+			if (!channelMembers.containsKey(userId)) {
+				partedIds.add(userId);
+			}
+		}
+
+		for (String userId : partedIds) {
+			parted.add(members.remove(userId));
+			session.getMembershipIndex().remove(userId, this);
+		}
+
+		for (Map.Entry<String, ChannelMembers.Parameters> entry : channelMembers.entrySet()) {
+			String userId = entry.getKey();
+			ChannelMembers.Parameters parameters = entry.getValue();
+
+			User user = session.getOrCreateUser(userId);
+			boolean userChanged = user.importUserAttrs(parameters.getUserAttrs());
+			if (userChanged) {
+				session.reposition(user);
+			}
+
+			Member membership = members.get(userId);
+			if (membership == null) {
+				membership = new Member(user);
 				if (parameters.getMemberAttrs() != null) {
 					membership.importMemberAttrs(parameters.getMemberAttrs());
 				}
 
 				members.put(userId, membership);
+				session.getMembershipIndex().add(userId, this);
+				joined.add(membership);
+
+			} else {
+				boolean memberChanged = parameters.getMemberAttrs() != null &&
+						membership.importMemberAttrs(parameters.getMemberAttrs());
+
+				if (memberChanged || userChanged) {
+					updated.add(membership);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Diffs members held in a compact table. Members are materialized for the lists only if a batch listener
+	 * wants them.
+	 *
+	 * @return true if anything changed
+	 */
+	private boolean importCompactMembers(CompactMemberTable table, ChannelMembers channelMembers, boolean batch,
+	                                     List<Member> joined, List<Member> parted, List<Member> updated) {
+		boolean changed = false;
+
+		List<String> partedIds = new ArrayList<String>();
+		for (String userId : table.keySet()) {
+			if (!channelMembers.containsKey(userId)) {
+				partedIds.add(userId);
+			}
+		}
+
+		for (String userId : partedIds) {
+			if (batch) parted.add(table.get(userId));
+			table.delete(userId);
+			changed = true;
+		}
+
+		for (Map.Entry<String, ChannelMembers.Parameters> entry : channelMembers.entrySet()) {
+			String userId = entry.getKey();
+			ChannelMembers.Parameters parameters = entry.getValue();
+
+			boolean userChanged = false;
+			String userName = null;
+
+			User user = session.findUser(userId);
+			if (user != null) {
+				userChanged = user.importUserAttrs(parameters.getUserAttrs());
+				if (userChanged) {
+					session.reposition(user);
+				}
+			} else if (parameters.getUserAttrs() != null) {
+				userName = parameters.getUserAttrs().getName();
+			}
+
+			int result = table.update(userId, userName, parameters.getMemberAttrs());
+
+			if (result == CompactMemberTable.ADDED) {
+				if (batch) joined.add(table.get(userId));
+				changed = true;
+
+			} else if (result == CompactMemberTable.CHANGED || userChanged) {
+				if (batch) updated.add(table.get(userId));
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+
 	public void describeChannel(AckListener ackListener) {
+		AckListener flight = session.beginDescribe("channel:" + id, ackListener);
+		if (flight == null) return;
 
 		DescribeChannel a = new DescribeChannel();
 		a.setChannelId(id);
-		a.setAckListener(ackListener);
+		a.setAckListener(flight);
 		session.getTransport().enqueue(a);
 	}
 
@@ -187,6 +345,7 @@ public class Channel extends Conversation {
 
 	public void setRealm(Realm realm) {
 		this.realm = realm;
+		if (session != null) session.reposition(this);
 	}
 
 	public String getName() {
@@ -195,6 +354,7 @@ public class Channel extends Conversation {
 
 	public void setName(String name) {
 		this.name = name;
+		if (session != null) session.reposition(this);
 	}
 
 	public String getOwnerId() {
@@ -233,6 +393,10 @@ public class Channel extends Conversation {
 		return suspended;
 	}
 
+	void setSuspended(boolean suspended) {
+		this.suspended = suspended;
+	}
+
 	@Override
 	public void leave() {
 		PartChannel a = new PartChannel();
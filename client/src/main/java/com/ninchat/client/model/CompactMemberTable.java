@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import com.ninchat.client.transport.attributes.ChannelMemberAttrs;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>Members of a large channel in an open-addressed table keyed by packed user ids. Each member costs a packed id,
+ * a flag, a timestamp and a reference to the (pooled) user name. Ids that can not be packed are kept in a small
+ * side map.</p>
+ *
+ * <p>{@link Member} and {@link User} objects are materialized on access. A known user of the session is used as
+ * is; others are detached User objects that carry the stored name. Changes to materialized members are not
+ * written back.</p>
+ *
+ * <p>Not synchronized.</p>
+ */
+final class CompactMemberTable extends AbstractMap<String, Member> {
+	static final int UNCHANGED = 0;
+	static final int ADDED = 1;
+	static final int CHANGED = 2;
+
+	private static final long EMPTY = 0L;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final Session session;
+
+	private long[] keys;
+	private String[] names;
+	private boolean[] operators;
+	private long[] since;
+	private int size;
+
+	/** Members whose ids can not be packed */
+	private final Map<String, Member> others = new HashMap<String, Member>();
+
+	private Set<Entry<String, Member>> entrySet;
+	private Set<String> keySet;
+
+	CompactMemberTable(Session session, int expectedSize) {
+		this.session = session;
+
+		int capacity = INITIAL_CAPACITY;
+		while (capacity * 2 < expectedSize * 3) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * @return a table with the same members. The arrays are copied, members are not materialized.
+	 */
+	CompactMemberTable copy() {
+		return new CompactMemberTable(this);
+	}
+
+	private CompactMemberTable(CompactMemberTable table) {
+		session = table.session;
+		keys = table.keys.clone();
+		names = table.names.clone();
+		operators = table.operators.clone();
+		since = table.since.clone();
+		size = table.size;
+		others.putAll(table.others);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		names = new String[capacity];
+		operators = new boolean[capacity];
+		since = new long[capacity];
+	}
+
+	private static boolean isPackable(Object userId) {
+		return userId instanceof String && ((String)userId).length() > 0 && IdCodec.isPackableShortId((String)userId);
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	private int slotOf(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != EMPTY && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Adds or updates a member.
+	 *
+	 * @param userId User id
+	 * @param userName Name to store for users that are not known to the session, may be null
+	 * @param attrs Member attributes or null to keep the current ones
+	 * @return {@link #ADDED}, {@link #CHANGED} or {@link #UNCHANGED}
+	 */
+	int update(String userId, String userName, ChannelMemberAttrs attrs) {
+		if (!isPackable(userId)) {
+			Member member = others.get(userId);
+			if (member == null) {
+				member = new Member(materializeUser(userId, userName));
+				if (attrs != null) member.importMemberAttrs(attrs);
+				others.put(userId, member);
+				return ADDED;
+			}
+			return attrs != null && member.importMemberAttrs(attrs) ? CHANGED : UNCHANGED;
+		}
+
+		long key = IdCodec.encodeShortId(userId);
+		int i = slotOf(key);
+
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			names[i] = userName;
+			operators[i] = attrs != null && attrs.getOperator();
+			since[i] = attrs != null ? attrs.getSince() : 0;
+			size++;
+
+			if (size * 3 > keys.length * 2) {
+				rehash(keys.length * 2);
+			}
+			return ADDED;
+		}
+
+		boolean changed = false;
+		if (userName != null && !userName.equals(names[i])) {
+			names[i] = userName;
+			changed = true;
+		}
+		if (attrs != null) {
+			boolean operator = attrs.getOperator();
+			long s = attrs.getSince();
+			changed |= operator != operators[i] || s != since[i];
+			operators[i] = operator;
+			since[i] = s;
+		}
+		return changed ? CHANGED : UNCHANGED;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		String[] oldNames = names;
+		boolean[] oldOperators = operators;
+		long[] oldSince = since;
+
+		allocate(capacity);
+
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != EMPTY) {
+				int i = slotOf(oldKeys[j]);
+				keys[i] = oldKeys[j];
+				names[i] = oldNames[j];
+				operators[i] = oldOperators[j];
+				since[i] = oldSince[j];
+			}
+		}
+	}
+
+	/**
+	 * Removes a member without materializing it
+	 *
+	 * @return true if the user was a member
+	 */
+	boolean delete(Object userId) {
+		if (!isPackable(userId)) {
+			return others.remove(userId) != null;
+		}
+
+		int i = slotOf(IdCodec.encodeShortId((String)userId));
+		if (keys[i] == EMPTY) return false;
+
+		deleteSlot(i);
+		return true;
+	}
+
+	/**
+	 * Backward shift deletion keeps probe sequences intact without tombstones
+	 */
+	private void deleteSlot(int i) {
+		int mask = keys.length - 1;
+
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (keys[j] == EMPTY) break;
+
+			int home = hash(keys[j]) & mask;
+			// Move the entry at j to i if i lies cyclically between its home slot and j
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				keys[i] = keys[j];
+				names[i] = names[j];
+				operators[i] = operators[j];
+				since[i] = since[j];
+				i = j;
+			}
+		}
+
+		keys[i] = EMPTY;
+		names[i] = null;
+		operators[i] = false;
+		since[i] = 0;
+		size--;
+	}
+
+	private User materializeUser(String userId, String userName) {
+		User user = session != null ? session.findUser(userId) : null;
+		if (user == null) {
+			user = new User(userId);
+			if (userName != null) {
+				user.setName(userName);
+			}
+		}
+		return user;
+	}
+
+	private Member materialize(int i) {
+		Member member = new Member(materializeUser(IdCodec.decodeShortId(keys[i]), names[i]));
+		member.setOperator(operators[i]);
+		member.setSince(since[i]);
+		return member;
+	}
+
+	@Override
+	public int size() {
+		return size + others.size();
+	}
+
+	@Override
+	public boolean containsKey(Object userId) {
+		if (!isPackable(userId)) {
+			return others.containsKey(userId);
+		}
+		return keys[slotOf(IdCodec.encodeShortId((String)userId))] != EMPTY;
+	}
+
+	@Override
+	public Member get(Object userId) {
+		if (!isPackable(userId)) {
+			return others.get(userId);
+		}
+
+		int i = slotOf(IdCodec.encodeShortId((String)userId));
+		return keys[i] != EMPTY ? materialize(i) : null;
+	}
+
+	@Override
+	public Member put(String userId, Member member) {
+		if (!isPackable(userId)) {
+			return others.put(userId, member);
+		}
+
+		Member previous = get(userId);
+
+		long key = IdCodec.encodeShortId(userId);
+		int i = slotOf(key);
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			size++;
+		}
+		names[i] = member.getUser().getName();
+		operators[i] = member.isOperator();
+		since[i] = member.getSince();
+
+		if (size * 3 > keys.length * 2) {
+			rehash(keys.length * 2);
+		}
+
+		return previous;
+	}
+
+	@Override
+	public Member remove(Object userId) {
+		Member previous = get(userId);
+		delete(userId);
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		allocate(INITIAL_CAPACITY);
+		size = 0;
+		others.clear();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		if (keySet == null) {
+			keySet = new AbstractSet<String>() {
+				@Override
+				public Iterator<String> iterator() {
+					return new SlotIterator<String>() {
+						@Override
+						String element(int slot) {
+							return IdCodec.decodeShortId(keys[slot]);
+						}
+
+						@Override
+						String element(Entry<String, Member> other) {
+							return other.getKey();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return CompactMemberTable.this.size();
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+
+				@Override
+				public boolean remove(Object o) {
+					return delete(o);
+				}
+			};
+		}
+		return keySet;
+	}
+
+	@Override
+	public Set<Entry<String, Member>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Entry<String, Member>>() {
+				@Override
+				public Iterator<Entry<String, Member>> iterator() {
+					return new SlotIterator<Entry<String, Member>>() {
+						@Override
+						Entry<String, Member> element(int slot) {
+							Member member = materialize(slot);
+							return new SimpleImmutableEntry<String, Member>(member.getUser().getUserId(), member);
+						}
+
+						@Override
+						Entry<String, Member> element(Entry<String, Member> other) {
+							return other;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return CompactMemberTable.this.size();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Iterates occupied slots and then the side map. Removal through the iterator is supported for the side map
+	 * only, because backward shift deletion would move unvisited entries behind the cursor.
+	 */
+	private abstract class SlotIterator<E> implements Iterator<E> {
+		private int next = advance(0);
+		private Iterator<Entry<String, Member>> othersIterator;
+
+		private int advance(int from) {
+			while (from < keys.length && keys[from] == EMPTY) from++;
+			return from;
+		}
+
+		abstract E element(int slot);
+
+		abstract E element(Entry<String, Member> other);
+
+		@Override
+		public boolean hasNext() {
+			if (next < keys.length) return true;
+			if (othersIterator == null) othersIterator = others.entrySet().iterator();
+			return othersIterator.hasNext();
+		}
+
+		@Override
+		public E next() {
+			if (!hasNext()) throw new NoSuchElementException();
+
+			if (next < keys.length) {
+				E e = element(next);
+				next = advance(next + 1);
+				return e;
+			}
+			return element(othersIterator.next());
+		}
+
+		@Override
+		public void remove() {
+			if (othersIterator == null) throw new UnsupportedOperationException();
+			othersIterator.remove();
+		}
+	}
+}
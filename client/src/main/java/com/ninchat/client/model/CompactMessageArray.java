@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import com.ninchat.client.transport.Payload;
+import com.ninchat.client.transport.payloads.NinchatTextMessage;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * <p>A sorted set of messages stored column by column: packed ids, primitive timestamps, interned senders, UTF-8
+ * encoded text and packed flags. Only payloads other than plain text are kept as objects.</p>
+ *
+ * <p>Messages returned by this set are views that are created on every access. Changes to
+ * {@link Message#setHidden(boolean) hidden} and {@link Message#setFold(boolean) fold} are written back to the set.
+ * Other setters only affect the view.</p>
+ */
+public class CompactMessageArray extends AbstractMessageArray {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte FLAG_HIDDEN = 1;
+	private static final byte FLAG_FOLD = 2;
+	private static final byte FLAG_TEXT = 4;
+
+	private static final long NO_TIME = Long.MIN_VALUE;
+	private static final int NO_SENDER = -1;
+
+	private SenderTable senders;
+
+	private long[] ids;
+	private long[] times;
+	private int[] senderIndices;
+	private float[] ttls;
+	private byte[] flags;
+	private byte[][] texts;
+
+	/** Allocated when the first message that needs them is stored */
+	private String[] idStrings;
+	private String[] types;
+	private Payload[] payloads;
+
+	CompactMessageArray(SenderTable senders) {
+		this(senders, INITIAL_CAPACITY);
+	}
+
+	CompactMessageArray(SenderTable senders, int initialCapacity) {
+		this.senders = senders;
+
+		int capacity = Math.max(initialCapacity, 1);
+		ids = new long[capacity];
+		times = new long[capacity];
+		senderIndices = new int[capacity];
+		ttls = new float[capacity];
+		flags = new byte[capacity];
+		texts = new byte[capacity][];
+	}
+
+	@Override
+	protected int capacity() {
+		return ids.length;
+	}
+
+	@Override
+	protected void reallocate(int capacity, int from, int length) {
+		ids = copy(ids, new long[capacity], from, length);
+		times = copy(times, new long[capacity], from, length);
+		senderIndices = copy(senderIndices, new int[capacity], from, length);
+		ttls = copy(ttls, new float[capacity], from, length);
+		flags = copy(flags, new byte[capacity], from, length);
+		texts = copy(texts, new byte[capacity][], from, length);
+
+		if (idStrings != null) idStrings = copy(idStrings, new String[capacity], from, length);
+		if (types != null) types = copy(types, new String[capacity], from, length);
+		if (payloads != null) payloads = copy(payloads, new Payload[capacity], from, length);
+	}
+
+	private static <T> T copy(T source, T target, int from, int length) {
+		System.arraycopy(source, from, target, 0, length);
+		return target;
+	}
+
+	@Override
+	protected void move(int from, int to, int length) {
+		System.arraycopy(ids, from, ids, to, length);
+		System.arraycopy(times, from, times, to, length);
+		System.arraycopy(senderIndices, from, senderIndices, to, length);
+		System.arraycopy(ttls, from, ttls, to, length);
+		System.arraycopy(flags, from, flags, to, length);
+		System.arraycopy(texts, from, texts, to, length);
+
+		if (idStrings != null) System.arraycopy(idStrings, from, idStrings, to, length);
+		if (types != null) System.arraycopy(types, from, types, to, length);
+		if (payloads != null) System.arraycopy(payloads, from, payloads, to, length);
+	}
+
+	@Override
+	protected void release(int from, int to) {
+		Arrays.fill(texts, from, to, null);
+
+		if (idStrings != null) Arrays.fill(idStrings, from, to, null);
+		if (types != null) Arrays.fill(types, from, to, null);
+		if (payloads != null) Arrays.fill(payloads, from, to, null);
+	}
+
+	@Override
+	protected void removed(int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (senderIndices[i] != NO_SENDER) {
+				senders.release(senderIndices[i]);
+				senderIndices[i] = NO_SENDER;
+			}
+		}
+	}
+
+	/**
+	 * Moves the senders of the messages to a table of their own, so that the messages no longer hold entries of
+	 * the shared table. Called when the conversation is removed from the session.
+	 */
+	void detachSenders() {
+		SenderTable own = new SenderTable();
+
+		for (int i = head(); i < head() + size(); i++) {
+			if (senderIndices[i] != NO_SENDER) {
+				SenderTable.Sender sender = senders.get(senderIndices[i]);
+				senders.release(senderIndices[i]);
+				senderIndices[i] = own.intern(sender.userKey, sender.userIdString, sender.userName);
+			}
+		}
+
+		senders = own;
+	}
+
+	@Override
+	protected void store(int index, Message message) {
+		ids[index] = message.idKey;
+		times[index] = message.time != null ? message.time.getTime() : NO_TIME;
+		ttls[index] = message.ttl;
+
+		if (message.userKey == IdCodec.NO_SHORT_ID && message.userIdString == null && message.userName == null) {
+			senderIndices[index] = NO_SENDER;
+		} else {
+			senderIndices[index] = senders.intern(message.userKey, message.userIdString, message.userName);
+		}
+
+		byte f = 0;
+		if (message.hidden) f |= FLAG_HIDDEN;
+		if (message.fold) f |= FLAG_FOLD;
+
+		Payload payload = message.payload;
+		texts[index] = null;
+
+		if (payload instanceof NinchatTextMessage) {
+			f |= FLAG_TEXT;
+			String text = ((NinchatTextMessage)payload).getText();
+			if (text != null) {
+				texts[index] = text.getBytes(UTF8);
+			}
+			payload = null;
+		}
+
+		flags[index] = f;
+
+		if (message.idString != null && idStrings == null) idStrings = new String[capacity()];
+		if (idStrings != null) idStrings[index] = message.idString;
+
+		if (message.type != null && types == null) types = new String[capacity()];
+		if (types != null) types[index] = message.type;
+
+		if (payload != null && payloads == null) payloads = new Payload[capacity()];
+		if (payloads != null) payloads[index] = payload;
+	}
+
+	@Override
+	protected Message load(int index) {
+		byte f = flags[index];
+
+		Payload payload;
+		if ((f & FLAG_TEXT) != 0) {
+			NinchatTextMessage text = new NinchatTextMessage();
+			if (texts[index] != null) {
+				text.setText(new String(texts[index], UTF8));
+			}
+			payload = text;
+
+		} else {
+			payload = payloads != null ? payloads[index] : null;
+		}
+
+		View view = new View(ids[index], idStrings != null ? idStrings[index] : null, payload);
+
+		view.time = times[index] != NO_TIME ? new Date(times[index]) : null;
+		view.ttl = ttls[index];
+		view.hidden = (f & FLAG_HIDDEN) != 0;
+		view.fold = (f & FLAG_FOLD) != 0;
+		view.type = types != null ? types[index] : null;
+
+		if (senderIndices[index] != NO_SENDER) {
+			SenderTable.Sender sender = senders.get(senderIndices[index]);
+			view.userKey = sender.userKey;
+			view.userIdString = sender.userIdString;
+			view.userName = sender.userName;
+		}
+
+		return view;
+	}
+
+	@Override
+	protected int compareAt(int index, long key, String fallback) {
+		String idString = idStrings != null ? idStrings[index] : null;
+
+		if (idString == null && fallback == null) {
+			return IdCodec.compareKeys(ids[index], key);
+		}
+
+		String a = idString != null ? idString : IdCodec.decodeMessageId(ids[index]);
+		return a.compareTo(fallback != null ? fallback : IdCodec.decodeMessageId(key));
+	}
+
+	private void setFlag(Message message, byte flag, boolean value) {
+		int index = indexOf(message);
+		if (index >= 0) {
+			flags[index] = (byte)(value ? flags[index] | flag : flags[index] & ~flag);
+		}
+	}
+
+	/**
+	 * A materialized message that writes flag changes back to the array.
+	 */
+	private class View extends Message {
+		View(long idKey, String idString, Payload payload) {
+			super(idKey, idString, payload);
+		}
+
+		@Override
+		public void setHidden(boolean hidden) {
+			super.setHidden(hidden);
+			setFlag(this, FLAG_HIDDEN, hidden);
+		}
+
+		@Override
+		public void setFold(boolean fold) {
+			super.setFold(fold);
+			setFlag(this, FLAG_FOLD, fold);
+		}
+	}
+}
@@ -55,8 +55,8 @@ public abstract class Conversation {
 	protected final Collection<ConversationListener> conversationListeners = new CopyOnWriteArraySet<ConversationListener>();
 
 	protected final WrappedId wrappedId;
-	// TODO: Limit history size
-	protected final SortedSet<Message> messages = new TreeSet<Message>();
+	/** Container is created by session's MessageStore which may also limit its size */
+	protected final SortedSet<Message> messages;
 
 	public static final long DEFAULT_HISTORY_SIZE = 20;
 
@@ -81,15 +81,23 @@ public abstract class Conversation {
 		}
 	}
 
-	ActivityStatus activityStatus = ActivityStatus.NONE;
+	volatile ActivityStatus activityStatus = ActivityStatus.NONE;
+
+	/** Text and link messages from other users after lastSeenMessageId. Guarded by messages. */
+	private int unreadCount;
 
 	public Conversation(Session session, String id, WrappedId wrappedId) {
 		this.id = id;
 		this.session = session;
 		this.wrappedId = wrappedId;
+
+		messages = session != null ? session.getMessageStore().createMessages(this) : new SortedMessageArray();
 	}
 
 	public SortedSet<Message> getMessages() {
+		if (session != null) {
+			session.getMessageStore().onViewed(this);
+		}
 		return messages;
 	}
 
@@ -97,12 +105,42 @@ public abstract class Conversation {
 	 * Add a batch of messages. This should be used when message history is loaded. ActivityStatus stays intact
 	 * because it is assumed that these messages have been written in the past.
 	 *
-	 * @param messages Messages to add
+	 * @param messages Messages to add in ascending order. Sorted batch is merged as a single run.
 	 */
 	void addMessages(List<Message> messages) {
-		boolean hadNew = false;
+		addMessages(messages, true);
+	}
+
+	/**
+	 * Adds a page that has been read from the {@link MessageArchive}. Messages are not archived again.
+	 *
+	 * @param messages Messages to add in ascending order
+	 */
+	void addArchivedMessages(List<Message> messages) {
+		addMessages(messages, false);
+	}
+
+	private void addMessages(List<Message> messages, boolean archive) {
+		int added;
 		synchronized (this.messages) {
-			hadNew = this.messages.addAll(messages);
+			int size = this.messages.size();
+			this.messages.addAll(messages);
+			added = this.messages.size() - size;
+		}
+
+		MessageArchive messageArchive = session.getMessageArchive();
+		if (archive && messageArchive != null && !messages.isEmpty()) {
+			messageArchive.append(this, messages);
+		}
+
+		MessageSearchIndex searchIndex = session.getMessageSearchIndex();
+		if (added > 0 && searchIndex != null) {
+			searchIndex.add(this, messages);
+		}
+
+		if (added > 0) {
+			session.getMessageStore().onHistoryLoaded(this, added);
+			recountUnread();
 		}
 
 		if (!messages.isEmpty() && activityStatus == ActivityStatus.NONE) {
@@ -127,6 +165,24 @@ public abstract class Conversation {
 
 		synchronized (messages) {
 			wasNew = messages.add(message);
+
+			if (wasNew && isUnread(message)) {
+				unreadCount++;
+			}
+		}
+
+		if (wasNew) {
+			MessageArchive messageArchive = session.getMessageArchive();
+			if (messageArchive != null) {
+				messageArchive.append(this, message);
+			}
+
+			MessageSearchIndex searchIndex = session.getMessageSearchIndex();
+			if (searchIndex != null) {
+				searchIndex.add(this, message);
+			}
+
+			session.getMessageStore().onMessagesReceived(this, 1);
 		}
 
 		if (logger.isLoggable(Level.FINER))logger.finer("Message added to chat " + getName());
@@ -137,7 +193,7 @@ public abstract class Conversation {
 
 		if (message.payloadMatches(NinchatTextMessage.class, NinchatLinkMessage.class)) {
 			// If message was user's own (and sent from another client)...
-			if (session.getUserId().equals(message.getUserId())) {
+			if (message.isFromUser(session.getUserId())) {
 				// ... mark all messages automatically as seen.
 				updateLastSeenMessageId(message.getId());
 
@@ -165,10 +221,16 @@ public abstract class Conversation {
 	}
 
 	public Message findMessage(String messageId) {
-		for (Message message : messages.tailSet(new Message(messageId))) {
-			return messageId.equals(message.getId()) ? message : null;
+		synchronized (messages) {
+			if (messages instanceof AbstractMessageArray) {
+				return ((AbstractMessageArray)messages).find(messageId);
+			}
+
+			for (Message message : messages.tailSet(new Message(messageId))) {
+				return messageId.equals(message.getId()) ? message : null;
+			}
+			return null;
 		}
-		return null;
 	}
 
 	/**
@@ -192,11 +254,14 @@ public abstract class Conversation {
 	 * @param messageId
 	 */
 	public void updateLastSeenMessageId(String messageId) {
+		session.getMessageStore().onViewed(this);
+
 		setActivityStatus(ActivityStatus.NONE); // Nah, assume that all messages are seen ..
 
-		if (lastSeenMessageId != null && messageId.compareTo(lastSeenMessageId) <= 0) return; // No op
+		if (lastSeenMessageId != null && IdCodec.compareMessageIds(messageId, lastSeenMessageId) <= 0) return; // No op
 
 		lastSeenMessageId = messageId;
+		recountUnread();
 
 		// Send action to server
 
@@ -230,6 +295,65 @@ public abstract class Conversation {
 		return lastSeenMessageId;
 	}
 
+	/**
+	 * Restores state saved by {@link ModelSnapshot}. Nothing is sent to the server and no listeners are called.
+	 */
+	void restore(String lastSeenMessageId, List<Message> messages) {
+		int added;
+		synchronized (this.messages) {
+			this.lastSeenMessageId = lastSeenMessageId;
+
+			int size = this.messages.size();
+			this.messages.addAll(messages);
+			added = this.messages.size() - size;
+		}
+
+		if (added > 0 && session != null) {
+			MessageSearchIndex searchIndex = session.getMessageSearchIndex();
+			if (searchIndex != null) {
+				searchIndex.add(this, messages);
+			}
+
+			session.getMessageStore().onHistoryLoaded(this, added);
+		}
+		recountUnread();
+	}
+
+	/**
+	 * Returns the number of text and link messages from other users that have been received after the last seen
+	 * message. Maintained as messages arrive.
+	 *
+	 * @return number of unread messages
+	 */
+	public int getUnreadCount() {
+		synchronized (messages) {
+			return unreadCount;
+		}
+	}
+
+	private boolean isUnread(Message message) {
+		return (lastSeenMessageId == null || message.compareToId(lastSeenMessageId) > 0) &&
+				message.payloadMatches(NinchatTextMessage.class, NinchatLinkMessage.class) &&
+				!message.isFromUser(session.getUserId());
+	}
+
+	/**
+	 * Counts unread messages again. Walks only the messages after the last seen one.
+	 */
+	private void recountUnread() {
+		synchronized (messages) {
+			SortedSet<Message> unseen = lastSeenMessageId != null ? messages.tailSet(new Message(lastSeenMessageId)) : messages;
+
+			int count = 0;
+			for (Message message : unseen) {
+				if (isUnread(message)) {
+					count++;
+				}
+			}
+			unreadCount = count;
+		}
+	}
+
 	/**
 	 * Returns true if there are (new) unseen messages in this conversation
 	 *
@@ -242,7 +366,7 @@ public abstract class Conversation {
 		}
 		if (latest == null) return false;
 		if (lastSeenMessageId == null) return true;
-		return latest.getId().compareTo(lastSeenMessageId) > 0;
+		return latest.compareToId(lastSeenMessageId) > 0;
 	}
 
 	public ActivityStatus getActivityStatus() {
@@ -263,6 +387,7 @@ public abstract class Conversation {
 		if (activityStatus == ActivityStatus.UNREAD && this.activityStatus == ActivityStatus.HIGHLIGHT) return;
 
 		this.activityStatus = activityStatus;
+		session.activityStatusChanged(this, activityStatus);
 
 		if (logger.isLoggable(Level.FINE)) logger.fine("Activity status of " + this + " is now " + activityStatus);
 
@@ -282,6 +407,41 @@ public abstract class Conversation {
 	abstract public String getName();
 
 	public void loadHistory(AckListener ackListener) {
+		String messageId = null;
+		synchronized (messages) {
+			if (!messages.isEmpty()) {
+				messageId = messages.first().getId();
+			}
+		}
+
+		loadHistory(messageId, DEFAULT_HISTORY_SIZE, false, ackListener);
+	}
+
+	/**
+	 * Returns a cursor that pages backward from the oldest message that has been loaded so far.
+	 *
+	 * @return new HistoryCursor
+	 */
+	public HistoryCursor createHistoryCursor() {
+		String messageId = null;
+		synchronized (messages) {
+			if (!messages.isEmpty()) {
+				messageId = messages.first().getId();
+			}
+		}
+
+		return new HistoryCursor(this, HistoryCursor.Direction.BACKWARD, messageId);
+	}
+
+	/**
+	 * Sends a load_history action.
+	 *
+	 * @param messageId Exclusive anchor. Null loads the latest messages.
+	 * @param historyLength Maximum number of messages to load
+	 * @param forward Load messages newer than the anchor instead of older ones
+	 * @param ackListener Optional listener
+	 */
+	void loadHistory(String messageId, long historyLength, boolean forward, AckListener ackListener) {
 		LoadHistory a = new LoadHistory();
 
 		// Ugly reference to lower level
@@ -295,10 +455,14 @@ public abstract class Conversation {
 			throw new UnsupportedOperationException();
 		}
 
-		a.setHistoryLength(DEFAULT_HISTORY_SIZE); // TODO: Configurable
+		a.setHistoryLength(historyLength);
+
+		if (messageId != null) {
+			a.setMessageId(messageId);
+		}
 
-		if (!messages.isEmpty()) {
-			a.setMessageId(messages.first().getId());
+		if (forward) {
+			a.setHistoryOrder(1L);
 		}
 
 		a.setAckListener(ackListener);
@@ -325,8 +489,6 @@ public abstract class Conversation {
 		conversationListeners.remove(conversationListener);
 	}
 
-	void unregisterSessionListener() { }
-
 	/**
 	 * Returns an unambiguous wrapped id which makes a distinction between channel and dialogue
 	 *
@@ -412,21 +574,45 @@ public abstract class Conversation {
 		return historyLoaded;
 	}
 
-	private boolean containsHighlightTokens(Message message) {
-		String text = message.getText();
+	/**
+	 * Removes oldest messages. Called by MessageStore. Evicted messages can be loaded again with
+	 * {@link #loadHistory(AckListener)} or read from the {@link MessageArchive} by a {@link HistoryCursor}.
+	 *
+	 * @param count Number of messages to remove
+	 * @return number of messages actually removed
+	 */
+	int evictOldestMessages(int count) {
+		int evicted = 0;
+		Message first;
 
-		Set<String> highlighTokens = session.getHighlightTokens();
+		synchronized (messages) {
+			if (messages instanceof AbstractMessageArray) {
+				evicted = ((AbstractMessageArray)messages).removeOldest(count);
 
-		if (text != null) {
-			String[] tokens = text.split(HIGHLIGHT_TOKEN_SPLITTER);
-			for (String token : tokens) {
-				if (token.length() > 0 && highlighTokens.contains(token.toLowerCase())) { // TODO: Locale
-					return true;
+			} else {
+				while (evicted < count && !messages.isEmpty()) {
+					messages.remove(messages.first());
+					evicted++;
 				}
 			}
+
+			first = messages.isEmpty() ? null : messages.first();
 		}
 
-		return false;
+		if (evicted > 0) {
+			historyLoaded = false;
+
+			MessageSearchIndex searchIndex = session != null ? session.getMessageSearchIndex() : null;
+			if (searchIndex != null) {
+				searchIndex.trim(this, first);
+			}
+		}
+
+		return evicted;
+	}
+
+	private boolean containsHighlightTokens(Message message) {
+		return session.getHighlightMatcher().matches(message.getText());
 	}
 
 	@Override
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Keeps channels and dialogues of a session in display order: channels before dialogues, channels grouped by
+ * realm and each group sorted by name, ignoring case.</p>
+ *
+ * <p>The order is maintained incrementally. Conversations are added and removed as they are created and destroyed
+ * and repositioned when their sort keys change. Readers get an immutable snapshot, which is rebuilt only after a
+ * change.</p>
+ */
+final class ConversationIndex {
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<Conversation, Entry> entriesByConversation = new HashMap<Conversation, Entry>();
+
+	/** Realm names as captured when channels were positioned. Shared by all entries of a realm. */
+	private final Map<Realm, RealmKey> realmKeys = new HashMap<Realm, RealmKey>();
+
+	private volatile List<Conversation> snapshot = Collections.emptyList();
+
+	synchronized void add(Conversation conversation) {
+		if (entriesByConversation.containsKey(conversation)) return;
+
+		Entry entry = createEntry(conversation);
+		insert(entry);
+		entriesByConversation.put(conversation, entry);
+		snapshot = null;
+	}
+
+	synchronized void remove(Conversation conversation) {
+		Entry entry = entriesByConversation.remove(conversation);
+		if (entry == null) return;
+
+		entries.remove(indexOf(entry));
+		snapshot = null;
+	}
+
+	/**
+	 * Repositions the conversation if its name or realm has changed
+	 */
+	synchronized void update(Conversation conversation) {
+		Entry entry = entriesByConversation.get(conversation);
+		if (entry == null) return;
+
+		Entry updated = createEntry(conversation);
+		if (updated.compareTo(entry) == 0) return;
+
+		entries.remove(indexOf(entry));
+		insert(updated);
+		entriesByConversation.put(conversation, updated);
+		snapshot = null;
+	}
+
+	/**
+	 * Repositions channels of the realm if the realm has been renamed
+	 */
+	synchronized void update(Realm realm) {
+		RealmKey key = realmKeys.get(realm);
+		if (key == null || key.name.equals(realm.getName())) return;
+
+		// Channels of the realm are taken out while the key changes
+		List<Entry> affected = new ArrayList<Entry>();
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext(); ) {
+			Entry entry = i.next();
+			if (entry.realm == key) {
+				affected.add(entry);
+				i.remove();
+			}
+		}
+
+		key.name = realm.getName();
+
+		for (Entry entry : affected) {
+			insert(entry);
+		}
+
+		snapshot = null;
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		entriesByConversation.clear();
+		realmKeys.clear();
+		snapshot = Collections.emptyList();
+	}
+
+	/**
+	 * @return an immutable list of conversations in display order
+	 */
+	List<Conversation> snapshot() {
+		List<Conversation> s = snapshot;
+		if (s != null) return s;
+
+		synchronized (this) {
+			if (snapshot == null) {
+				List<Conversation> conversations = new ArrayList<Conversation>(entries.size());
+				for (Entry entry : entries) {
+					conversations.add(entry.conversation);
+				}
+				snapshot = Collections.unmodifiableList(conversations);
+			}
+			return snapshot;
+		}
+	}
+
+	private Entry createEntry(Conversation conversation) {
+		RealmKey realmKey = null;
+
+		Realm realm = conversation instanceof Channel ? ((Channel)conversation).getRealm() : null;
+		if (realm != null) {
+			realmKey = realmKeys.get(realm);
+			if (realmKey == null) {
+				realmKey = new RealmKey(realm);
+				realmKeys.put(realm, realmKey);
+			}
+		}
+
+		return new Entry(conversation, realmKey);
+	}
+
+	private void insert(Entry entry) {
+		int index = Collections.binarySearch(entries, entry);
+		entries.add(index < 0 ? -index - 1 : index, entry);
+	}
+
+	private int indexOf(Entry entry) {
+		int index = Collections.binarySearch(entries, entry);
+		assert index >= 0 && entries.get(index) == entry;
+		return index;
+	}
+
+	private static final class RealmKey {
+		final String id;
+		String name;
+
+		RealmKey(Realm realm) {
+			id = realm.getId();
+			name = realm.getName();
+		}
+
+		int compareTo(RealmKey other) {
+			if (this == other) return 0;
+
+			int c = name.compareToIgnoreCase(other.name);
+			return c != 0 ? c : id.compareTo(other.id);
+		}
+	}
+
+	/**
+	 * Sort keys captured when the conversation was positioned. Id is the final tiebreaker, so distinct conversations
+	 * never compare equal.
+	 */
+	private static final class Entry implements Comparable<Entry> {
+		final Conversation conversation;
+
+		final boolean dialogue;
+		final RealmKey realm;
+		final String name;
+		final String id;
+
+		Entry(Conversation conversation, RealmKey realm) {
+			this.conversation = conversation;
+			this.realm = realm;
+
+			dialogue = conversation instanceof Dialogue;
+
+			String n = conversation.getName();
+			name = n != null ? n : "";
+			id = conversation.getId();
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if (dialogue != other.dialogue) return dialogue ? 1 : -1;
+
+			if (realm != other.realm) {
+				if (realm == null) return -1;
+				if (other.realm == null) return 1;
+				return realm.compareTo(other.realm);
+			}
+
+			int c = name.compareToIgnoreCase(other.name);
+			if (c != 0) return c;
+
+			return id.compareTo(other.id);
+		}
+	}
+}
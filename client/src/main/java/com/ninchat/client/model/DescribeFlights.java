@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import com.ninchat.client.transport.AckListener;
+import com.ninchat.client.transport.Action;
+import com.ninchat.client.transport.Event;
+import com.ninchat.client.transport.events.Error;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deduplicates describe actions. A describe of an id that is already in flight does not send another action, the
+ * caller waits for the pending one instead and all waiters are notified of its outcome. A describe that has
+ * succeeded recently is not repeated at all, because its response has already been imported into the model.
+ * <p>
+ * Failed, timed out and cancelled describes are forgotten right away, so they can be retried.
+ */
+final class DescribeFlights {
+	public static final long DEFAULT_TTL = 5000;
+
+	/** Completed flights are pruned when there are more of them than this */
+	private static final int PRUNE_THRESHOLD = 256;
+
+	private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+	private volatile long ttl = DEFAULT_TTL;
+
+	long getTtl() {
+		return ttl;
+	}
+
+	void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Starts a describe or joins the one in flight.
+	 * <p>
+	 * If the describe has succeeded within the TTL, the waiter is acknowledged immediately in the calling thread
+	 * with the earlier action and response.
+	 *
+	 * @param key Type and id of the described object
+	 * @param waiter Optional listener for the outcome
+	 * @return an AckListener to set on a new describe action, or null if no action should be sent
+	 */
+	AckListener begin(String key, AckListener waiter) {
+		Flight served = null;
+
+		synchronized (this) {
+			Flight flight = flights.get(key);
+			if (flight != null) {
+				if (flight.response == null) {
+					if (waiter != null) flight.waiters.add(waiter);
+					return null;
+				}
+
+				if (System.nanoTime() - flight.completed < ttl * 1000000L) {
+					served = flight;
+				}
+			}
+
+			if (served == null) {
+				if (flights.size() >= PRUNE_THRESHOLD) prune();
+
+				flight = new Flight(key);
+				if (waiter != null) flight.waiters.add(waiter);
+				flights.put(key, flight);
+				return flight;
+			}
+		}
+
+		if (waiter != null) {
+			waiter.onAcknowledge(served.action, served.response);
+		}
+		return null;
+	}
+
+	/**
+	 * Forgets a completed describe, so that the next one is sent to the server
+	 */
+	synchronized void invalidate(String key) {
+		Flight flight = flights.get(key);
+		if (flight != null && flight.response != null) {
+			flights.remove(key);
+		}
+	}
+
+	synchronized void clear() {
+		flights.clear();
+	}
+
+	private void prune() {
+		long now = System.nanoTime();
+		for (Iterator<Flight> i = flights.values().iterator(); i.hasNext(); ) {
+			Flight flight = i.next();
+			if (flight.response != null && now - flight.completed >= ttl * 1000000L) {
+				i.remove();
+			}
+		}
+	}
+
+	private class Flight implements AckListener {
+		private final String key;
+
+		/** Guarded by DescribeFlights.this */
+		private final List<AckListener> waiters = new ArrayList<AckListener>(2);
+
+		private Action action;
+		private Event response;
+		private long completed;
+
+		private Flight(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Ends the flight and returns the waiters to notify
+		 */
+		private List<AckListener> land(Action action, Event response) {
+			synchronized (DescribeFlights.this) {
+				if (response != null) {
+					this.action = action;
+					this.response = response;
+					this.completed = System.nanoTime();
+				} else if (flights.get(key) == this) {
+					flights.remove(key);
+				}
+
+				List<AckListener> w = new ArrayList<AckListener>(waiters);
+				waiters.clear();
+				return w;
+			}
+		}
+
+		@Override
+		public void onAcknowledge(Action action, Event response) {
+			for (AckListener waiter : land(action, response)) {
+				waiter.onAcknowledge(action, response);
+			}
+		}
+
+		@Override
+		public void onError(Action action, Error response) {
+			for (AckListener waiter : land(action, null)) {
+				waiter.onError(action, response);
+			}
+		}
+
+		@Override
+		public void onTimeout(Action action) {
+			for (AckListener waiter : land(action, null)) {
+				waiter.onTimeout(action);
+			}
+		}
+
+		@Override
+		public void onCancel(Action action) {
+			for (AckListener waiter : land(action, null)) {
+				waiter.onCancel(action);
+			}
+		}
+	}
+}
@@ -29,7 +29,6 @@ package com.ninchat.client.model;
 import com.google.gson.JsonObject;
 import com.ninchat.client.transport.actions.UpdateDialogue;
 
-import java.util.SortedSet;
 import java.util.logging.Logger;
 
 /**
@@ -51,11 +50,17 @@ public class Dialogue extends Conversation {
 
 		if (session != null) {
 			peer = session.getOrCreateUser(id);
+			session.retainUser(peer);
 		}
 	}
 
-	public SortedSet<Message> getMessages() {
-		return messages;
+	/**
+	 * Lets the peer be evicted from the user cache after the dialogue has been removed
+	 */
+	void releasePeer() {
+		if (session != null && peer != null) {
+			session.releaseUser(peer);
+		}
 	}
 
 	public String getName() {
@@ -82,6 +87,7 @@ public class Dialogue extends Conversation {
 
 	void setAudienceQueue(AudienceQueue audienceQueue) {
 		this.audienceQueue = audienceQueue;
+		if (session != null) session.reposition(this);
 	}
 
 	public JsonObject getAudienceMetadata() {
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Finds highlight tokens in message texts. All tokens are compiled into a single Aho-Corasick automaton, so a text
+ * is scanned once regardless of the number of tokens and without allocating anything.</p>
+ *
+ * <p>A token matches when it is surrounded by word boundaries: the start or end of the text, whitespace or ASCII
+ * punctuation, as in {@link Conversation#HIGHLIGHT_TOKEN_SPLITTER}. Tokens may contain separators, which allows
+ * matching of multi-word names. Matching is case-insensitive; characters are folded one by one with
+ * {@link Character#toLowerCase(char)}.</p>
+ *
+ * <p>Instances are immutable and thread safe.</p>
+ */
+final class HighlightMatcher {
+	static final HighlightMatcher EMPTY = compile(new ArrayList<String>());
+
+	/** Outgoing edges of state s are at [edgeStart[s], edgeStart[s + 1]), sorted by character */
+	private final int[] edgeStart;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+
+	private final int[] failure;
+
+	/** Length of the token that ends at the state, or zero */
+	private final int[] tokenLength;
+
+	/** Next state on the failure chain that ends a token, or -1 */
+	private final int[] outputLink;
+
+	private HighlightMatcher(int[] edgeStart, char[] edgeChars, int[] edgeTargets, int[] failure, int[] tokenLength,
+	                         int[] outputLink) {
+		this.edgeStart = edgeStart;
+		this.edgeChars = edgeChars;
+		this.edgeTargets = edgeTargets;
+		this.failure = failure;
+		this.tokenLength = tokenLength;
+		this.outputLink = outputLink;
+	}
+
+	/**
+	 * @param tokens Highlight tokens. Empty tokens are ignored.
+	 * @return a matcher for the tokens
+	 */
+	static HighlightMatcher compile(Collection<String> tokens) {
+		List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+		List<Integer> lengths = new ArrayList<Integer>();
+
+		trie.add(new TreeMap<Character, Integer>());
+		lengths.add(0);
+
+		for (String token : tokens) {
+			if (token == null || token.length() == 0) continue;
+
+			int state = 0;
+			for (int i = 0; i < token.length(); i++) {
+				Character c = Character.toLowerCase(token.charAt(i));
+				Integer next = trie.get(state).get(c);
+				if (next == null) {
+					next = trie.size();
+					trie.add(new TreeMap<Character, Integer>());
+					lengths.add(0);
+					trie.get(state).put(c, next);
+				}
+				state = next;
+			}
+			lengths.set(state, token.length());
+		}
+
+		int states = trie.size();
+		int edges = states - 1;
+
+		int[] edgeStart = new int[states + 1];
+		char[] edgeChars = new char[edges];
+		int[] edgeTargets = new int[edges];
+		int[] tokenLength = new int[states];
+
+		int e = 0;
+		for (int s = 0; s < states; s++) {
+			edgeStart[s] = e;
+			for (Map.Entry<Character, Integer> entry : trie.get(s).entrySet()) {
+				edgeChars[e] = entry.getKey();
+				edgeTargets[e] = entry.getValue();
+				e++;
+			}
+			tokenLength[s] = lengths.get(s);
+		}
+		edgeStart[states] = e;
+
+		// Breadth-first pass computes failure and output links
+		int[] failure = new int[states];
+		int[] outputLink = new int[states];
+		outputLink[0] = -1;
+
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int i = edgeStart[0]; i < edgeStart[1]; i++) {
+			int child = edgeTargets[i];
+			failure[child] = 0;
+			outputLink[child] = -1;
+			queue.add(child);
+		}
+
+		HighlightMatcher partial = new HighlightMatcher(edgeStart, edgeChars, edgeTargets, failure, tokenLength, outputLink);
+
+		while (!queue.isEmpty()) {
+			int s = queue.removeFirst();
+			for (int i = edgeStart[s]; i < edgeStart[s + 1]; i++) {
+				int child = edgeTargets[i];
+				int f = partial.step(failure[s], edgeChars[i]);
+				failure[child] = f;
+				outputLink[child] = tokenLength[f] > 0 ? f : outputLink[f];
+				queue.add(child);
+			}
+		}
+
+		return partial;
+	}
+
+	/**
+	 * @return true if the automaton has no tokens
+	 */
+	boolean isEmpty() {
+		return edgeChars.length == 0;
+	}
+
+	/**
+	 * @param text Text to scan
+	 * @return true if any of the tokens occurs in the text as a whole word
+	 */
+	boolean matches(CharSequence text) {
+		if (text == null || isEmpty()) return false;
+
+		int length = text.length();
+		int state = 0;
+
+		for (int i = 0; i < length; i++) {
+			state = step(state, Character.toLowerCase(text.charAt(i)));
+
+			int t = tokenLength[state] > 0 ? state : outputLink[state];
+			if (t < 0) continue;
+
+			if (i + 1 < length && !isSeparator(text.charAt(i + 1))) continue;
+
+			for (; t >= 0; t = outputLink[t]) {
+				int start = i - tokenLength[t] + 1;
+				if (start == 0 || isSeparator(text.charAt(start - 1))) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private int step(int state, char c) {
+		while (true) {
+			int next = transition(state, c);
+			if (next >= 0) return next;
+			if (state == 0) return 0;
+			state = failure[state];
+		}
+	}
+
+	private int transition(int state, char c) {
+		int low = edgeStart[state];
+		int high = edgeStart[state + 1] - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char m = edgeChars[mid];
+			if (m < c) {
+				low = mid + 1;
+			} else if (m > c) {
+				high = mid - 1;
+			} else {
+				return edgeTargets[mid];
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Matches a single character of {@link Conversation#HIGHLIGHT_TOKEN_SPLITTER}: whitespace or ASCII punctuation.
+	 */
+	static boolean isSeparator(char c) {
+		switch (c) {
+			case ' ': case '\t': case '\n': case 0x0B: case '\f': case '\r':
+				return true;
+		}
+		return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+	}
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import com.ninchat.client.transport.Action;
+import com.ninchat.client.transport.Event;
+import com.ninchat.client.transport.PartialAckListener;
+import com.ninchat.client.transport.events.Error;
+import com.ninchat.client.transport.events.MessageReceived;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Pages through the history of a conversation with <code>load_history</code> requests.</p>
+ *
+ * <p>When a page has been delivered, the next one is prefetched while the consumer handles the current page. If the
+ * consumer asks for the next page before the prefetch has completed, page size is doubled until
+ * {@link #getMaxPageSize()} is reached. Cursor stops at the start of history (or at the latest message when paging
+ * forward) and calls {@link PageListener#onEnd(HistoryCursor)}.</p>
+ *
+ * <p>If the session has a {@link MessageArchive}, pages are read from it while the anchor is within an archived run
+ * of messages and <code>load_history</code> is only sent when the archive runs out. Reading the archive and adding
+ * the page to the conversation run through {@link Session#execute(Runnable)}, so in single-writer mode pages from the
+ * archive are delivered on the model thread like pages from the server.</p>
+ *
+ * <p>Messages are added to the conversation as usual. Pages are delivered in ascending order.</p>
+ */
+public class HistoryCursor {
+	private final static Logger logger = Logger.getLogger(HistoryCursor.class.getName());
+
+	public static final long DEFAULT_MAX_PAGE_SIZE = 500;
+
+	public enum Direction {
+		/** Towards older messages */
+		BACKWARD,
+		/** Towards newer messages */
+		FORWARD
+	}
+
+	public interface PageListener {
+		/**
+		 * Called when a page is available.
+		 *
+		 * @param cursor Cursor
+		 * @param messages Messages of the page in ascending order
+		 */
+		public void onPage(HistoryCursor cursor, List<Message> messages);
+
+		/**
+		 * Called when there is nothing more to load.
+		 *
+		 * @param cursor Cursor
+		 */
+		public void onEnd(HistoryCursor cursor);
+
+		/**
+		 * Called when loading failed, timed out or was cancelled. Page can be requested again.
+		 *
+		 * @param cursor Cursor
+		 */
+		public void onFailure(HistoryCursor cursor);
+	}
+
+	private final Conversation conversation;
+	private final Direction direction;
+
+	private long pageSize = Conversation.DEFAULT_HISTORY_SIZE;
+	private long maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+	private boolean prefetch = true;
+
+	/** Exclusive anchor for the next request. Null means the latest messages. */
+	private String anchor;
+
+	private PageRequest inFlight;
+	private List<Message> ready;
+	private PageListener waiting;
+	private boolean end;
+
+	/**
+	 * @param conversation Conversation
+	 * @param direction Paging direction
+	 * @param anchorMessageId Paging starts next to this message. Null starts from the latest messages and is only
+	 *                        allowed when paging backward.
+	 */
+	public HistoryCursor(Conversation conversation, Direction direction, String anchorMessageId) {
+		if (direction == Direction.FORWARD && anchorMessageId == null) {
+			throw new IllegalArgumentException("Paging forward requires an anchor message!");
+		}
+
+		this.conversation = conversation;
+		this.direction = direction;
+		this.anchor = anchorMessageId;
+	}
+
+	public Conversation getConversation() {
+		return conversation;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	public synchronized long getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Sets the size of the next page. Page size grows automatically if the consumer keeps up.
+	 */
+	public synchronized void setPageSize(long pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be positive!");
+		}
+		this.pageSize = pageSize;
+	}
+
+	public synchronized long getMaxPageSize() {
+		return maxPageSize;
+	}
+
+	public synchronized void setMaxPageSize(long maxPageSize) {
+		if (maxPageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be positive!");
+		}
+		this.maxPageSize = maxPageSize;
+	}
+
+	public synchronized boolean isPrefetch() {
+		return prefetch;
+	}
+
+	public synchronized void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Returns true if the start of history (or the latest message) has been reached and all pages have been
+	 * delivered.
+	 */
+	public synchronized boolean isEnd() {
+		return end && ready == null;
+	}
+
+	/**
+	 * Requests the next page. The listener is called immediately if the page has already been prefetched.
+	 *
+	 * @param listener Listener for the page
+	 */
+	public void fetch(PageListener listener) {
+		List<Message> page = null;
+		boolean ended = false;
+		PageRequest request = null;
+
+		synchronized (this) {
+			if (waiting != null) {
+				throw new IllegalStateException("Previous page has not been delivered yet!");
+			}
+
+			if (ready != null) {
+				page = ready;
+				ready = null;
+
+			} else if (end) {
+				ended = true;
+
+			} else {
+				waiting = listener;
+
+				if (inFlight == null) {
+					request = request();
+
+				} else if (pageSize < maxPageSize) {
+					// Consumer caught up with the prefetch. Fewer and larger round trips from now on.
+					pageSize = Math.min(pageSize * 2, maxPageSize);
+					if (logger.isLoggable(Level.FINE)) logger.fine("History page size of " + conversation + " is now " + pageSize);
+				}
+			}
+		}
+
+		if (page != null) {
+			listener.onPage(this, page);
+			prefetchNext();
+
+		} else if (ended) {
+			listener.onEnd(this);
+
+		} else if (request != null) {
+			send(request);
+		}
+	}
+
+	private void prefetchNext() {
+		PageRequest request;
+
+		synchronized (this) {
+			if (!prefetch || end || inFlight != null || ready != null) {
+				return;
+			}
+
+			request = request();
+		}
+
+		send(request);
+	}
+
+	/**
+	 * Must be called while holding the monitor
+	 *
+	 * @return the request. It must be sent with {@link #send(PageRequest)} after the monitor has been released.
+	 */
+	private PageRequest request() {
+		inFlight = new PageRequest(pageSize, anchor);
+		return inFlight;
+	}
+
+	/**
+	 * Reads the page from the archive or sends <code>load_history</code>. Runs on the model thread in single-writer
+	 * mode, because a page from the archive is added to the conversation right away.
+	 */
+	private void send(final PageRequest request) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				boolean forward = direction == Direction.FORWARD;
+
+				MessageArchive archive = conversation.session != null ? conversation.session.getMessageArchive() : null;
+				if (archive != null && request.anchor != null) {
+					List<Message> messages = archive.read(conversation, request.anchor, request.length, forward);
+					if (!messages.isEmpty()) {
+						if (logger.isLoggable(Level.FINE)) logger.fine("Read " + messages.size() + " messages of " + conversation + " from archive");
+						request.archived = messages;
+						conversation.addArchivedMessages(messages);
+						onPageLoaded(request);
+						return;
+					}
+				}
+
+				conversation.loadHistory(request.anchor, request.length, forward, request);
+			}
+		};
+
+		if (conversation.session != null) {
+			conversation.session.execute(task);
+		} else {
+			task.run();
+		}
+	}
+
+	private void onPageLoaded(PageRequest request) {
+		if (request.archived == null && request.anchor != null && !request.messageIds.isEmpty()) {
+			linkArchivedRuns(request);
+		}
+
+		List<Message> page;
+		if (request.archived != null) {
+			page = new ArrayList<Message>(request.archived);
+
+		} else {
+			page = new ArrayList<Message>(request.messageIds.size());
+			for (String messageId : request.messageIds) {
+				Message message = conversation.findMessage(messageId);
+				if (message != null) {
+					page.add(message);
+				}
+			}
+			Collections.sort(page);
+		}
+
+		PageListener listener;
+		PageRequest next = null;
+
+		synchronized (this) {
+			if (inFlight != request) {
+				return; // Stale
+			}
+			inFlight = null;
+
+			if (request.archived == null) {
+				// The delivered ids decide, because the message store may already have evicted some of the page.
+				// A short page from the archive only means that its run ended.
+				if (request.messageIds.size() < request.length) {
+					end = true;
+				}
+				if (!request.messageIds.isEmpty()) {
+					anchor = boundary(request.messageIds, direction == Direction.BACKWARD);
+				}
+			} else {
+				anchor = direction == Direction.BACKWARD ? page.get(0).getId() : page.get(page.size() - 1).getId();
+			}
+
+			listener = waiting;
+			waiting = null;
+
+			if (page.isEmpty() && !end) {
+				// All messages of the page were evicted before they could be delivered. Skip to the next page.
+				if (listener == null) {
+					return;
+				}
+				waiting = listener;
+				listener = null;
+				next = request();
+
+			} else if (listener == null) {
+				ready = page.isEmpty() ? null : page;
+				return;
+			}
+		}
+
+		if (listener == null) {
+			send(next);
+			return;
+		}
+
+		if (!page.isEmpty()) {
+			listener.onPage(this, page);
+			prefetchNext();
+
+		} else {
+			listener.onEnd(this);
+		}
+	}
+
+	/**
+	 * A page that was loaded from the server is adjacent to its anchor. Tells the archive to join their runs.
+	 */
+	private void linkArchivedRuns(PageRequest request) {
+		MessageArchive archive = conversation.session != null ? conversation.session.getMessageArchive() : null;
+		if (archive == null) return;
+
+		if (direction == Direction.BACKWARD) {
+			archive.link(conversation, boundary(request.messageIds, false), request.anchor);
+		} else {
+			archive.link(conversation, request.anchor, boundary(request.messageIds, true));
+		}
+	}
+
+	/**
+	 * @return the oldest or the newest of the message ids
+	 */
+	private static String boundary(List<String> messageIds, boolean oldest) {
+		String boundary = null;
+		for (String messageId : messageIds) {
+			int c = IdCodec.compareMessageIds(messageId, boundary);
+			if (boundary == null || (oldest ? c < 0 : c > 0)) {
+				boundary = messageId;
+			}
+		}
+		return boundary;
+	}
+
+	private void onPageFailed(PageRequest request) {
+		PageListener listener;
+
+		synchronized (this) {
+			if (inFlight != request) {
+				return; // Stale
+			}
+			inFlight = null;
+
+			listener = waiting;
+			waiting = null;
+		}
+
+		if (listener != null) {
+			listener.onFailure(this);
+		}
+	}
+
+	private class PageRequest implements PartialAckListener {
+		final long length;
+		/** Anchor that the page was requested next to */
+		final String anchor;
+		final List<String> messageIds = new ArrayList<String>();
+		/** Page that was read from the archive instead */
+		List<Message> archived;
+
+		PageRequest(long length, String anchor) {
+			this.length = length;
+			this.anchor = anchor;
+		}
+
+		private void collect(Event event) {
+			if (event instanceof MessageReceived) {
+				String messageId = ((MessageReceived)event).getMessageId();
+				if (messageId != null) {
+					messageIds.add(messageId);
+				}
+			}
+		}
+
+		@Override
+		public void onPartial(Action action, Event response, long remaining) {
+			collect(response);
+		}
+
+		@Override
+		public void onAcknowledge(Action action, Event response) {
+			collect(response);
+			onPageLoaded(this);
+		}
+
+		@Override
+		public void onError(Action action, Error response) {
+			logger.fine("Loading history of " + conversation + " failed: " + response.getErrorType());
+			onPageFailed(this);
+		}
+
+		@Override
+		public void onTimeout(Action action) {
+			onPageFailed(this);
+		}
+
+		@Override
+		public void onCancel(Action action) {
+			onPageFailed(this);
+		}
+	}
+}
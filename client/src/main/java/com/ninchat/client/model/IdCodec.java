@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+/**
+ * <p>Packs base-32 ids (digits <code>0-9a-v</code>) into longs.</p>
+ *
+ * <ul>
+ *   <li>Message ids are 13 characters long and represent an unsigned 64 bit number. Packed message ids compare
+ *   (as unsigned longs) in the same order as the original strings.</li>
+ *   <li>Other ids of up to 12 characters are packed five bits per character, left aligned, with the length in the
+ *   lowest four bits. They also keep their string order.</li>
+ * </ul>
+ *
+ * <p>Ids that don't fit must be kept as strings. Use the <code>is...</code> methods to check.</p>
+ */
+public final class IdCodec {
+	public static final int MESSAGE_ID_LENGTH = 13;
+	public static final int MAX_SHORT_ID_LENGTH = 12;
+
+	/** Never produced by {@link #encodeShortId(String)} because length nibble is at most 12 */
+	public static final long NO_SHORT_ID = -1L;
+
+	private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+
+	private IdCodec() { }
+
+	private static int symbol(char c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'v') return c - 'a' + 10;
+		return -1;
+	}
+
+	private static boolean isSymbols(String id) {
+		for (int i = 0; i < id.length(); i++) {
+			if (symbol(id.charAt(i)) < 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the id can be packed with {@link #encodeMessageId(String)}
+	 */
+	public static boolean isPackableMessageId(String id) {
+		return id != null && id.length() == MESSAGE_ID_LENGTH && symbol(id.charAt(0)) >= 0 && symbol(id.charAt(0)) < 16 && isSymbols(id);
+	}
+
+	public static long encodeMessageId(String id) {
+		if (!isPackableMessageId(id)) {
+			throw new IllegalArgumentException("Not a packable message id: " + id);
+		}
+
+		long key = 0;
+		for (int i = 0; i < MESSAGE_ID_LENGTH; i++) {
+			key = (key << 5) | symbol(id.charAt(i));
+		}
+		return key;
+	}
+
+	public static String decodeMessageId(long key) {
+		char[] c = new char[MESSAGE_ID_LENGTH];
+		for (int i = MESSAGE_ID_LENGTH - 1; i >= 0; i--) {
+			c[i] = DIGITS[(int)(key & 31)];
+			key >>>= 5;
+		}
+		return new String(c);
+	}
+
+	/**
+	 * Compares packed ids as unsigned numbers
+	 */
+	public static int compareKeys(long a, long b) {
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * Compares two message ids without allocating. Null is less than anything else. Packed keys sort like the
+	 * ids they encode, so the strings are compared as they are.
+	 */
+	public static int compareMessageIds(String a, String b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+
+		return a.compareTo(b);
+	}
+
+	/**
+	 * Returns true if the id can be packed with {@link #encodeShortId(String)}
+	 */
+	public static boolean isPackableShortId(String id) {
+		return id != null && id.length() <= MAX_SHORT_ID_LENGTH && isSymbols(id);
+	}
+
+	public static long encodeShortId(String id) {
+		if (!isPackableShortId(id)) {
+			throw new IllegalArgumentException("Not a packable id: " + id);
+		}
+
+		long key = 0;
+		for (int i = 0; i < MAX_SHORT_ID_LENGTH; i++) {
+			key = (key << 5) | (i < id.length() ? symbol(id.charAt(i)) : 0);
+		}
+		return (key << 4) | id.length();
+	}
+
+	public static String decodeShortId(long key) {
+		int length = (int)(key & 15);
+		char[] c = new char[length];
+		for (int i = 0; i < length; i++) {
+			c[i] = DIGITS[(int)((key >>> (64 - 5 * (i + 1))) & 31)];
+		}
+		return new String(c);
+	}
+}
@@ -61,9 +61,17 @@ public class Member {
 		return user;
 	}
 
-	void importMemberAttrs(ChannelMemberAttrs attrs) {
+	/**
+	 * @return true if any attribute changed
+	 */
+	boolean importMemberAttrs(ChannelMemberAttrs attrs) {
+		boolean wasOperator = operator;
+		long wasSince = since;
+
 		operator = attrs.getOperator();
 		since = attrs.getSince();
+
+		return operator != wasOperator || since != wasSince;
 	}
 
 	@Override
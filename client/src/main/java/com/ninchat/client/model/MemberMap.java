@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Member map of a channel. Small channels keep their members in a HashMap. Once the channel grows over the
+ * session's {@link Session#getCompactMemberThreshold() compact member threshold}, members are moved to a
+ * {@link CompactMemberTable} and stay there. Growth is checked by the channel when members are imported or
+ * join.</p>
+ *
+ * <p>Mutators synchronize on the map itself. Like {@link SnapshotMap}, hands out immutable snapshots. The snapshot
+ * of a compact table is a read-only view of the table itself; the table is copied before it is modified again.</p>
+ */
+final class MemberMap extends AbstractMap<String, Member> {
+	private final Channel channel;
+
+	private Map<String, Member> delegate = new HashMap<String, Member>();
+
+	private volatile Map<String, Member> snapshot;
+
+	/** True if the compact table is viewed by the current snapshot */
+	private boolean shared;
+
+	MemberMap(Channel channel) {
+		this.channel = channel;
+	}
+
+	boolean isCompact() {
+		return delegate instanceof CompactMemberTable;
+	}
+
+	/**
+	 * Moves members to a compact table if the expected size exceeds the threshold
+	 *
+	 * @return the compact table or null if members are kept in a HashMap
+	 */
+	synchronized CompactMemberTable compactIfLarger(int expectedSize) {
+		Session session = channel.session;
+		if (!isCompact() && session != null && expectedSize > session.getCompactMemberThreshold()) {
+			CompactMemberTable table = new CompactMemberTable(session, expectedSize);
+			table.putAll(delegate);
+			session.getMembershipIndex().addLargeChannel(channel, delegate.keySet());
+			releaseUsers(); // The table does not hold users
+			delegate = table;
+			snapshot = null;
+		}
+		if (!isCompact()) {
+			return null;
+		}
+		unshare(); // The caller modifies the table
+		return (CompactMemberTable)delegate;
+	}
+
+	/**
+	 * Copies the compact table if the current snapshot is a view of it. The snapshot stays valid until
+	 * {@link #changed()} or a mutator discards it.
+	 */
+	private void unshare() {
+		if (shared) {
+			delegate = ((CompactMemberTable)delegate).copy();
+			shared = false;
+		}
+	}
+
+	/**
+	 * Marks the map changed after the compact table has been modified directly
+	 */
+	void changed() {
+		snapshot = null;
+	}
+
+	@Override
+	public synchronized Member put(String userId, Member member) {
+		unshare();
+		snapshot = null;
+		Member previous = delegate.put(userId, member);
+		if (!isCompact() && (previous == null || previous.getUser() != member.getUser())) {
+			retain(member);
+			release(previous);
+		}
+		return previous;
+	}
+
+	@Override
+	public synchronized Member remove(Object userId) {
+		unshare();
+		snapshot = null;
+		Member previous = delegate.remove(userId);
+		if (!isCompact()) {
+			release(previous);
+		}
+		return previous;
+	}
+
+	@Override
+	public synchronized void clear() {
+		snapshot = null;
+		releaseUsers();
+		if (shared) {
+			delegate = new CompactMemberTable(channel.session, 0);
+			shared = false;
+		} else {
+			delegate.clear();
+		}
+	}
+
+	/**
+	 * Releases the users held by the members, so that they may be evicted from the user cache. Called when the
+	 * members are dropped or the channel is parted.
+	 */
+	synchronized void releaseUsers() {
+		if (!isCompact()) {
+			for (Member member : delegate.values()) {
+				release(member);
+			}
+		}
+	}
+
+	private void retain(Member member) {
+		Session session = channel.session;
+		if (session != null && member != null && member.getUser() != null) {
+			session.retainUser(member.getUser());
+		}
+	}
+
+	private void release(Member member) {
+		Session session = channel.session;
+		if (session != null && member != null && member.getUser() != null) {
+			session.releaseUser(member.getUser());
+		}
+	}
+
+	@Override
+	public Member get(Object userId) {
+		return delegate.get(userId);
+	}
+
+	@Override
+	public boolean containsKey(Object userId) {
+		return delegate.containsKey(userId);
+	}
+
+	@Override
+	public int size() {
+		return delegate.size();
+	}
+
+	/**
+	 * @return a read-only view. Members are removed with {@link #remove(Object)}, which releases their users.
+	 */
+	@Override
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(delegate.keySet());
+	}
+
+	/**
+	 * @return a read-only view, including the entries
+	 */
+	@Override
+	public Set<Entry<String, Member>> entrySet() {
+		return Collections.unmodifiableMap(delegate).entrySet();
+	}
+
+	/**
+	 * @return an immutable copy of the current contents, or a read-only view of a compact table. Members of a
+	 * compact table are materialized when they are accessed.
+	 */
+	Map<String, Member> snapshot() {
+		Map<String, Member> s = snapshot;
+		if (s != null) return s;
+
+		synchronized (this) {
+			if (snapshot == null) {
+				if (isCompact()) {
+					snapshot = Collections.unmodifiableMap(delegate);
+					shared = true;
+				} else {
+					snapshot = Collections.unmodifiableMap(new HashMap<String, Member>(delegate));
+				}
+			}
+			return snapshot;
+		}
+	}
+}
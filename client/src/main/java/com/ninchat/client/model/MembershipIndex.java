@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps users to the channels they are members of. Channels report their membership changes here, so updates of a
+ * user can be delivered to the channels that contain the user without asking every channel.
+ * <p>
+ * Channels with a compact member table are not indexed member by member. They are asked directly instead.
+ */
+final class MembershipIndex {
+	private final Map<String, Set<Channel>> channelsByUser = new HashMap<String, Set<Channel>>();
+	private final Set<Channel> largeChannels = new HashSet<Channel>();
+
+	synchronized void add(String userId, Channel channel) {
+		Set<Channel> channels = channelsByUser.get(userId);
+		if (channels == null) {
+			channels = new HashSet<Channel>(4);
+			channelsByUser.put(userId, channels);
+		}
+		channels.add(channel);
+	}
+
+	synchronized void remove(String userId, Channel channel) {
+		Set<Channel> channels = channelsByUser.get(userId);
+		if (channels != null && channels.remove(channel) && channels.isEmpty()) {
+			channelsByUser.remove(userId);
+		}
+	}
+
+	/**
+	 * Removes the channel from the index
+	 *
+	 * @param userIds Current members of the channel
+	 */
+	synchronized void removeChannel(Channel channel, Collection<String> userIds) {
+		if (!largeChannels.remove(channel)) {
+			for (String userId : userIds) {
+				remove(userId, channel);
+			}
+		}
+	}
+
+	/**
+	 * Stops indexing members of the channel one by one
+	 *
+	 * @param userIds Current members of the channel
+	 */
+	synchronized void addLargeChannel(Channel channel, Collection<String> userIds) {
+		for (String userId : userIds) {
+			remove(userId, channel);
+		}
+		largeChannels.add(channel);
+	}
+
+	/**
+	 * @return channels that the user is a member of. The list is a copy.
+	 */
+	List<Channel> getChannels(String userId) {
+		List<Channel> result;
+		List<Channel> large;
+
+		synchronized (this) {
+			Set<Channel> channels = channelsByUser.get(userId);
+			if (largeChannels.isEmpty()) {
+				return channels != null ? new ArrayList<Channel>(channels) : Collections.<Channel>emptyList();
+			}
+
+			result = channels != null ? new ArrayList<Channel>(channels) : new ArrayList<Channel>();
+			large = new ArrayList<Channel>(largeChannels);
+		}
+
+		// Channels lock their members before the index, so they are asked without holding the index lock
+		for (Channel channel : large) {
+			if (channel.containsMember(userId)) {
+				result.add(channel);
+			}
+		}
+
+		return result;
+	}
+
+	synchronized void clear() {
+		channelsByUser.clear();
+		largeChannels.clear();
+	}
+}
@@ -38,42 +38,65 @@ import java.util.Date;
  * @author Kari Lavikka
  */
 public class Message implements Comparable {
-	protected final String id;
+	/** Packed message id. Valid when idString is null. See {@link IdCodec} */
+	protected final long idKey;
+	/** Message id that could not be packed */
+	protected final String idString;
 	protected Date time;
 	protected String type;
-	protected String userId;
+	/** Packed user id or {@link IdCodec#NO_SHORT_ID} */
+	protected long userKey = IdCodec.NO_SHORT_ID;
+	/** User id that could not be packed */
+	protected String userIdString;
 	protected String userName;
 	protected float ttl;
 	protected boolean fold;
 	protected boolean hidden;
 
+	/** Decoded ids, cached on first access */
+	private String decodedId;
+	private String decodedUserId;
+
 	protected final Payload payload;
 
 	protected Message(String id, Payload payload) {
-		this.id = id;
+		boolean packable = IdCodec.isPackableMessageId(id);
+		this.idKey = packable ? IdCodec.encodeMessageId(id) : 0;
+		this.idString = packable ? null : id;
 		this.payload = payload;
 	}
 
 	protected Message(String id) {
-		this.id = id;
-		this.payload = null;
+		this(id, null);
+	}
+
+	/**
+	 * Creates a message with an already packed id. See {@link IdCodec}.
+	 */
+	Message(long idKey, String idString, Payload payload) {
+		this.idKey = idKey;
+		this.idString = idString;
+		this.payload = payload;
 	}
 
 	Message(MessageReceived event) {
-		this.id = event.getMessageId();
+		this(event.getMessageId(), event.getPayloadCount() > 0 ? event.getPayloads()[0] : null);
 		time = new Date((long)(event.getMessageTime() * 1000));
-		userId = event.getMessageUserId();
+		setUserId(event.getMessageUserId());
 		userName = event.getMessageUserName();
 		hidden = event.getMessageHidden();
-
-		if (event.getPayloadCount() > 0) {
-			payload = event.getPayloads()[0];
-		} else {
-			payload = null;
-		}
 	}
 
+	/**
+	 * Returns message id. A packed id is decoded on the first call.
+	 */
 	public String getId() {
+		if (idString != null) return idString;
+
+		String id = decodedId;
+		if (id == null) {
+			decodedId = id = IdCodec.decodeMessageId(idKey);
+		}
 		return id;
 	}
 
@@ -93,12 +116,37 @@ public class Message implements Comparable {
 		this.type = type;
 	}
 
+	/**
+	 * Returns user id of the sender. A packed id is decoded on the first call.
+	 */
 	public String getUserId() {
+		if (userIdString != null || userKey == IdCodec.NO_SHORT_ID) return userIdString;
+
+		String userId = decodedUserId;
+		if (userId == null) {
+			decodedUserId = userId = IdCodec.decodeShortId(userKey);
+		}
 		return userId;
 	}
 
 	public void setUserId(String userId) {
-		this.userId = userId;
+		decodedUserId = null;
+		if (IdCodec.isPackableShortId(userId)) {
+			userKey = IdCodec.encodeShortId(userId);
+			userIdString = null;
+		} else {
+			userKey = IdCodec.NO_SHORT_ID;
+			userIdString = userId;
+		}
+	}
+
+	/**
+	 * Returns true if the message was sent by the given user. Does not allocate.
+	 */
+	public boolean isFromUser(String userId) {
+		if (userId == null) return false;
+		if (userIdString != null) return userIdString.equals(userId);
+		return userKey != IdCodec.NO_SHORT_ID && IdCodec.isPackableShortId(userId) && userKey == IdCodec.encodeShortId(userId);
 	}
 
 	public String getUserName() {
@@ -135,12 +183,45 @@ public class Message implements Comparable {
 
 	@Override
 	public int compareTo(Object o) {
-		return id.compareTo(((Message)o).id);
+		Message m = (Message)o;
+
+		if (idString == null && m.idString == null) {
+			return IdCodec.compareKeys(idKey, m.idKey);
+		}
+
+		return getId().compareTo(m.getId());
+	}
+
+	/**
+	 * Compares id of this message to a message id without allocating.
+	 */
+	int compareToId(String messageId) {
+		if (idString == null && IdCodec.isPackableMessageId(messageId)) {
+			return IdCodec.compareKeys(idKey, IdCodec.encodeMessageId(messageId));
+		}
+
+		return getId().compareTo(messageId);
+	}
+
+	/**
+	 * Compares id of this message to a packed key (fallback null) or to an unpacked id (fallback non-null).
+	 */
+	int compareToId(long key, String fallback) {
+		if (idString == null && fallback == null) {
+			return IdCodec.compareKeys(idKey, key);
+		}
+
+		return getId().compareTo(fallback != null ? fallback : IdCodec.decodeMessageId(key));
 	}
 
 	@Override
 	public boolean equals(Object obj) {
-		return obj instanceof Message && id.equals(((Message)obj).id);
+		return obj instanceof Message && compareTo(obj) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return idString != null ? idString.hashCode() : (int)(idKey ^ (idKey >>> 32));
 	}
 
 	public String getText() {
@@ -179,6 +260,6 @@ public class Message implements Comparable {
 
 	@Override
 	public String toString() {
-		return "" + time + " <" + userId + "/" + userName + "> " + getText();
+		return "" + time + " <" + getUserId() + "/" + userName + "> " + getText();
 	}
 }
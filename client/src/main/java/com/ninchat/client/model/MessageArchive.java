@@ -0,0 +1,957 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ninchat.client.model;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Local on-disk archive of messages. Messages that are added to conversations are appended to memory-mapped
+ * segment files, one series of segments per conversation. A {@link HistoryCursor} reads pages from the archive
+ * before it sends <code>load_history</code>, so messages that a {@link MessageStore} has evicted from the heap can
+ * be scrolled back to without a round trip.</p>
+ *
+ * <p>Messages are appended in runs. A run is a sequence of messages in ascending order without gaps: a batch of
+ * history or messages received one after another during a session. A run is broken when a message arrives out of
+ * order, when it has already been archived or when a new session is created, because messages may have been
+ * missed in between. Pages are only served from within a single run, so the archive never hides messages that it
+ * does not have. When a page of history has been loaded next to an archived message, {@link HistoryCursor} links the
+ * run of the page to the run of that message, so scrolling back through the same history later is served from the
+ * archive.</p>
+ *
+ * <p>Segments of a conversation are numbered files in a subdirectory of its own. Every {@value #INDEX_INTERVAL}th
+ * message of a run is kept in a sparse in-memory index, which is built from the segment files when a conversation is
+ * first accessed. When a conversation has {@link #getMaxSegments()} segments, the oldest one is deleted. Segments stay
+ * mapped while the conversation is among the {@link #getMaxOpenConversations()} most recently accessed ones, and the
+ * index is kept for the {@link #getMaxIndexedConversations()} most recently accessed ones, so reopening a
+ * conversation usually only maps its segments again.</p>
+ *
+ * <p>The archive is a cache: segments are not forced to disk. A record that was torn by a crash of the process is
+ * dropped when the segment is read again. After a crash of the operating system, pages of a mapping may have reached
+ * the disk in any order; a page that can not be decoded is not served and the cursor falls back to
+ * <code>load_history</code>.</p>
+ */
+public final class MessageArchive {
+	private final static Logger logger = Logger.getLogger(MessageArchive.class.getName());
+
+	public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+	public static final int DEFAULT_MAX_OPEN_CONVERSATIONS = 32;
+	public static final int DEFAULT_MAX_INDEXED_CONVERSATIONS = 1024;
+
+	/** Number of messages per entry in the sparse index */
+	public static final int INDEX_INTERVAL = 32;
+
+	private static final int MAGIC = 0x4e434d41; // "NCMA"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+
+	private static final byte FLAG_RUN_START = 1;
+	/** Record links two runs. Its data is the last message id of the older run and the first of the newer. */
+	private static final byte FLAG_LINK = 2;
+	/** Record belongs to a batch of history, which does not continue the run of received messages */
+	private static final byte FLAG_HISTORY = 4;
+
+	/** Record length and flags */
+	private static final int RECORD_HEADER_SIZE = 4 + 1;
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+
+	private final Gson gson = new Gson();
+
+	/** Indexed archives of recently accessed conversations, by file key, in access order */
+	private final LinkedHashMap<String, Log> logs = new LinkedHashMap<String, Log>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Log> eldest) {
+			if (size() <= maxIndexedConversations) return false;
+
+			mapped.remove(eldest.getKey());
+			eldest.getValue().unmap();
+			return true;
+		}
+	};
+
+	/** Archives whose segments are mapped, in access order. A subset of {@link #logs}. */
+	private final LinkedHashMap<String, Log> mapped = new LinkedHashMap<String, Log>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Log> eldest) {
+			if (size() <= maxOpenConversations) return false;
+
+			eldest.getValue().unmap();
+			return true;
+		}
+	};
+
+	private int maxOpenConversations = DEFAULT_MAX_OPEN_CONVERSATIONS;
+	private int maxIndexedConversations = DEFAULT_MAX_INDEXED_CONVERSATIONS;
+
+	private boolean closed;
+
+	public MessageArchive(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Opens or creates an archive. The directory should be specific to the user of the session.
+	 *
+	 * @param segmentSize Size of a segment file in bytes
+	 * @param maxSegments Maximum number of segments per conversation
+	 */
+	public MessageArchive(File directory, int segmentSize, int maxSegments) throws IOException {
+		if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE + 4) {
+			throw new IllegalArgumentException("Segment size is too small!");
+		}
+		if (maxSegments <= 0) {
+			throw new IllegalArgumentException("Segment count must be positive!");
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can not create " + directory);
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	public synchronized int getMaxOpenConversations() {
+		return maxOpenConversations;
+	}
+
+	/**
+	 * Sets the number of conversations whose segments are kept mapped. Others are mapped again when they are
+	 * accessed. Their index is kept, see {@link #setMaxIndexedConversations(int)}.
+	 */
+	public synchronized void setMaxOpenConversations(int maxOpenConversations) {
+		if (maxOpenConversations <= 0) {
+			throw new IllegalArgumentException("Conversation count must be positive!");
+		}
+
+		this.maxOpenConversations = maxOpenConversations;
+
+		Iterator<Log> i = mapped.values().iterator();
+		while (mapped.size() > maxOpenConversations && i.hasNext()) {
+			i.next().unmap();
+			i.remove();
+		}
+	}
+
+	public synchronized int getMaxIndexedConversations() {
+		return maxIndexedConversations;
+	}
+
+	/**
+	 * Sets the number of conversations whose sparse index is kept in memory. The index of another conversation is
+	 * rebuilt from its segments when it is accessed.
+	 */
+	public synchronized void setMaxIndexedConversations(int maxIndexedConversations) {
+		if (maxIndexedConversations <= 0) {
+			throw new IllegalArgumentException("Conversation count must be positive!");
+		}
+
+		this.maxIndexedConversations = maxIndexedConversations;
+
+		Iterator<Map.Entry<String, Log>> i = logs.entrySet().iterator();
+		while (logs.size() > maxIndexedConversations && i.hasNext()) {
+			Map.Entry<String, Log> entry = i.next();
+			mapped.remove(entry.getKey());
+			entry.getValue().unmap();
+			i.remove();
+		}
+	}
+
+	/**
+	 * Appends a message that has been received
+	 */
+	synchronized void append(Conversation conversation, Message message) {
+		Log log = log(conversation);
+		if (log != null) {
+			log.append(message);
+		}
+	}
+
+	/**
+	 * Appends a batch of history
+	 *
+	 * @param messages Messages in ascending order
+	 */
+	synchronized void append(Conversation conversation, List<Message> messages) {
+		Log log = log(conversation);
+		if (log != null) {
+			log.appendHistory(messages);
+		}
+	}
+
+	/**
+	 * Reads messages next to an archived message from the run that contains it.
+	 *
+	 * @param anchorMessageId Exclusive anchor
+	 * @param length Maximum number of messages
+	 * @param forward Read messages newer than the anchor instead of older ones
+	 * @return messages in ascending order. Empty if the anchor has not been archived or it is at the end of its run.
+	 */
+	synchronized List<Message> read(Conversation conversation, String anchorMessageId, long length, boolean forward) {
+		Log log = log(conversation);
+		if (log == null || anchorMessageId == null || length <= 0) {
+			return Collections.emptyList();
+		}
+
+		try {
+			return log.read(anchorMessageId, (int)Math.min(length, Integer.MAX_VALUE), forward);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "MessageArchive: Can not read archive of " + conversation, e);
+			return Collections.emptyList();
+		} catch (RuntimeException e) {
+			// A record that reached the disk only in part, e.g. JsonParseException
+			logger.log(Level.WARNING, "MessageArchive: Corrupt archive of " + conversation, e);
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Records that two archived messages are adjacent in the history of the conversation. If the older one ends
+	 * a run and the newer one starts another, the runs are joined.
+	 */
+	synchronized void link(Conversation conversation, String olderMessageId, String newerMessageId) {
+		Log log = log(conversation);
+		if (log != null && olderMessageId != null && newerMessageId != null) {
+			log.link(olderMessageId, newerMessageId);
+		}
+	}
+
+	/**
+	 * Breaks the runs of all conversations. Called when a new session has been created.
+	 */
+	synchronized void breakRuns() {
+		for (Log log : logs.values()) {
+			log.breakRun();
+		}
+	}
+
+	/**
+	 * Forgets the in-memory index of a conversation. Segment files are kept.
+	 */
+	synchronized void release(Conversation conversation) {
+		String key = key(conversation);
+		mapped.remove(key);
+		Log log = logs.remove(key);
+		if (log != null) {
+			log.unmap();
+		}
+	}
+
+	/**
+	 * Deletes archived messages of a conversation
+	 */
+	public synchronized void delete(Conversation conversation) {
+		String key = key(conversation);
+		mapped.remove(key);
+		Log log = logs.remove(key);
+		if (log != null) {
+			log.delete();
+		} else {
+			for (File file : segmentFiles(key)) {
+				file.delete();
+			}
+		}
+		new File(directory, key).delete();
+	}
+
+	/**
+	 * Returns the number of messages that have been archived for a conversation
+	 */
+	public synchronized int getMessageCount(Conversation conversation) {
+		Log log = log(conversation);
+		return log != null ? log.count() : 0;
+	}
+
+	/**
+	 * Stops archiving. Segment files are kept.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (Log log : logs.values()) {
+			log.unmap();
+		}
+		logs.clear();
+		mapped.clear();
+	}
+
+	private Log log(Conversation conversation) {
+		if (closed) return null;
+
+		String key = key(conversation);
+		Log log = logs.get(key);
+		if (log == null) {
+			log = new Log(key);
+			try {
+				log.recover();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "MessageArchive: Can not open archive of " + conversation, e);
+				log.unmap();
+				return null;
+			}
+			logs.put(key, log);
+
+		} else if (!log.isMapped()) {
+			// The index is still valid. Only the segments have to be mapped again.
+			try {
+				log.remap();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "MessageArchive: Can not reopen archive of " + conversation, e);
+				log.unmap();
+				logs.remove(key);
+				return null;
+			}
+		}
+
+		mapped.put(key, log);
+		return log;
+	}
+
+	/**
+	 * Returns the name of the subdirectory of the conversation. Characters other than lower case letters and digits
+	 * are escaped.
+	 */
+	private static String key(Conversation conversation) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(conversation instanceof Channel ? 'c' : 'd');
+		for (char c : conversation.getId().toCharArray()) {
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+				sb.append(c);
+			} else {
+				sb.append('_').append(Integer.toHexString(c)).append('_');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns segment files of a conversation in the order they were created. Segments are named by their number in
+	 * the subdirectory of the conversation, so only that directory is listed.
+	 */
+	private List<File> segmentFiles(String key) {
+		File[] files = new File(directory, key).listFiles();
+		List<File> result = new ArrayList<File>();
+		if (files == null) return result;
+
+		final Map<File, Long> numbers = new HashMap<File, Long>();
+		for (File file : files) {
+			try {
+				numbers.put(file, Long.parseLong(file.getName()));
+				result.add(file);
+			} catch (NumberFormatException e) {
+				// Not a segment
+			}
+		}
+
+		File[] sorted = result.toArray(new File[result.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long x = numbers.get(a);
+				long y = numbers.get(b);
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		return Arrays.asList(sorted);
+	}
+
+	private static class Segment {
+		final long number;
+		final File file;
+		/** Null while the archive of the conversation is not open */
+		MappedByteBuffer buffer;
+		/** Position of the end marker */
+		int end;
+		/** Position of the last record that was written */
+		int last;
+
+		Segment(long number, File file, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return start of the record that follows the one at the offset
+		 */
+		int next(int offset) {
+			return offset + RECORD_HEADER_SIZE + buffer.getInt(offset);
+		}
+
+		/**
+		 * Reads the id of a record without decoding the message. See {@link ModelSnapshot#writeMessage}.
+		 */
+		String readId(int offset) throws IOException {
+			int length = buffer.getInt(offset + RECORD_HEADER_SIZE);
+			if (length < 0 || length > buffer.capacity() - offset - RECORD_HEADER_SIZE - 4) return null;
+
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset + RECORD_HEADER_SIZE + 4);
+			byte[] bytes = new byte[length];
+			b.get(bytes);
+			return new String(bytes, "UTF-8");
+		}
+
+		/**
+		 * Reads the second id of a link record
+		 */
+		String readSecondId(int offset) throws IOException {
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset + RECORD_HEADER_SIZE);
+			byte[] data = new byte[buffer.getInt(offset)];
+			b.get(data);
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			ModelSnapshot.readString(in);
+			return ModelSnapshot.readString(in);
+		}
+
+		byte[] readData(int offset) {
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset + RECORD_HEADER_SIZE);
+			byte[] data = new byte[buffer.getInt(offset)];
+			b.get(data);
+			return data;
+		}
+	}
+
+	/**
+	 * Entry of the sparse index: up to {@link #INDEX_INTERVAL} consecutive records of a run in one segment
+	 */
+	private static class Block {
+		final Segment segment;
+		final int offset;
+		final String firstMessageId;
+		String lastMessageId;
+		int count;
+		/** Position after the last record */
+		int end;
+
+		Block(Segment segment, int offset, String firstMessageId) {
+			this.segment = segment;
+			this.offset = offset;
+			this.firstMessageId = firstMessageId;
+		}
+
+		int[] offsets() {
+			int[] offsets = new int[count];
+			int offset = this.offset;
+			for (int i = 0; i < count; i++) {
+				offsets[i] = offset;
+				offset = segment.next(offset);
+			}
+			return offsets;
+		}
+	}
+
+	private static class Run {
+		/** In the order of message ids. Blocks of a linked run may be in any segments. */
+		final List<Block> blocks = new ArrayList<Block>();
+
+		String firstMessageId() {
+			return blocks.get(0).firstMessageId;
+		}
+
+		String lastMessageId() {
+			return blocks.get(blocks.size() - 1).lastMessageId;
+		}
+
+		boolean covers(String messageId) {
+			return IdCodec.compareMessageIds(firstMessageId(), messageId) <= 0 &&
+					IdCodec.compareMessageIds(messageId, lastMessageId()) <= 0;
+		}
+
+		/**
+		 * @return index of the block that may contain the message
+		 */
+		int blockIndex(String messageId) {
+			int low = 0;
+			int high = blocks.size() - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (IdCodec.compareMessageIds(blocks.get(mid).firstMessageId, messageId) <= 0) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Archive of a single conversation
+	 */
+	private class Log {
+		final String key;
+		final List<Segment> segments = new ArrayList<Segment>();
+		final List<Run> runs = new ArrayList<Run>();
+
+		/** Run that received messages are appended to. Null starts a new run. */
+		Run tail;
+
+		/** False while the segments are not mapped */
+		boolean segmentsMapped = true;
+
+		Log(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Rebuilds the index from existing segments. Reading of a segment stops at the first incomplete record.
+		 */
+		void recover() throws IOException {
+			Run run = null;
+			Run batch = null;
+
+			for (File file : segmentFiles(key)) {
+				Segment segment = new Segment(Long.parseLong(file.getName()), file, map(file));
+				if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION) {
+					logger.warning("MessageArchive: Deleting invalid segment " + file);
+					file.delete();
+					continue;
+				}
+				segments.add(segment);
+
+				int offset = HEADER_SIZE;
+				while (offset + RECORD_HEADER_SIZE + 4 <= segmentSize) {
+					int length = segment.buffer.getInt(offset);
+					if (length <= 0 || length > segmentSize - offset - RECORD_HEADER_SIZE) break;
+
+					String messageId = segment.readId(offset);
+					if (messageId == null) break;
+
+					byte flags = segment.buffer.get(offset + 4);
+					if ((flags & FLAG_LINK) != 0) {
+						Run joined = join(messageId, segment.readSecondId(offset));
+						if (joined != null) {
+							if (run != null && !runs.contains(run)) run = joined;
+							if (batch != null && !runs.contains(batch)) batch = joined;
+						}
+						offset = segment.next(offset);
+						continue;
+					}
+
+					boolean start = (flags & FLAG_RUN_START) != 0;
+					if ((flags & FLAG_HISTORY) != 0) {
+						if (start || batch == null || IdCodec.compareMessageIds(messageId, batch.lastMessageId()) <= 0) {
+							batch = new Run();
+							runs.add(batch);
+						}
+						index(batch, segment, offset, messageId);
+					} else {
+						if (start || run == null || IdCodec.compareMessageIds(messageId, run.lastMessageId()) <= 0) {
+							run = new Run();
+							runs.add(run);
+						}
+						index(run, segment, offset, messageId);
+					}
+
+					offset = segment.next(offset);
+				}
+
+				segment.end = offset;
+				terminate(segment);
+			}
+
+			// Messages may have been missed while the archive was closed
+			tail = null;
+		}
+
+		void breakRun() {
+			tail = null;
+		}
+
+		/**
+		 * Appends a batch of history as a run of its own. Received messages continue their run after it.
+		 */
+		void appendHistory(List<Message> messages) {
+			Run live = tail;
+			tail = null;
+			for (Message message : messages) {
+				append(message, FLAG_HISTORY);
+			}
+			// Dropping a segment splits the runs, in which case the run of received messages is broken
+			tail = runs.contains(live) ? live : null;
+		}
+
+		void append(Message message) {
+			append(message, 0);
+		}
+
+		private void append(Message message, int flags) {
+			String messageId = message.getId();
+			if (messageId == null) return;
+
+			if (contains(messageId)) {
+				tail = null;
+				return;
+			}
+
+			boolean start = tail == null || IdCodec.compareMessageIds(messageId, tail.lastMessageId()) <= 0;
+
+			byte[] data;
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				ModelSnapshot.writeMessage(out, message, gson);
+				out.flush();
+				data = bytes.toByteArray();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "MessageArchive: Can not encode " + message, e);
+				tail = null;
+				return;
+			}
+
+			Segment segment = write(start ? flags | FLAG_RUN_START : flags, data);
+			if (segment == null) {
+				tail = null;
+				return;
+			}
+
+			if (start) {
+				tail = new Run();
+				runs.add(tail);
+			}
+			index(tail, segment, segment.last, messageId);
+		}
+
+		/**
+		 * Writes a record to the newest segment
+		 *
+		 * @return the segment or null if the record could not be written. {@link Segment#last} is the offset of the
+		 *         record.
+		 */
+		private Segment write(int flags, byte[] data) {
+			int needed = RECORD_HEADER_SIZE + data.length + 4; // With the end marker
+			if (needed > segmentSize - HEADER_SIZE) {
+				logger.fine("MessageArchive: A record of " + data.length + " bytes does not fit in a segment");
+				return null;
+			}
+
+			Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (segment == null || segmentSize - segment.end < needed) {
+				try {
+					segment = createSegment();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "MessageArchive: Can not create a segment for " + key, e);
+					return null;
+				}
+			}
+
+			// The length is written last, so a record that was torn by a crash of the process is not read as complete
+			int offset = segment.end;
+			ByteBuffer b = segment.buffer.duplicate();
+			b.position(offset + 4);
+			b.put((byte)flags);
+			b.put(data);
+			segment.last = offset;
+			segment.end = b.position();
+			terminate(segment);
+			segment.buffer.putInt(offset, data.length);
+			return segment;
+		}
+
+		void link(String olderMessageId, String newerMessageId) {
+			if (join(olderMessageId, newerMessageId) == null) return;
+
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				ModelSnapshot.writeString(out, olderMessageId);
+				ModelSnapshot.writeString(out, newerMessageId);
+				out.flush();
+				if (write(FLAG_LINK, bytes.toByteArray()) == null) {
+					logger.fine("MessageArchive: Link of " + key + " is not persisted");
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "MessageArchive: Can not encode a link", e);
+			}
+		}
+
+		/**
+		 * Joins the run that ends with the older message to the run that starts with the newer one
+		 *
+		 * @return the joined run or null if there were no such runs
+		 */
+		private Run join(String olderMessageId, String newerMessageId) {
+			Run older = null;
+			Run newer = null;
+			for (Run run : runs) {
+				if (olderMessageId.equals(run.lastMessageId())) older = run;
+				if (newerMessageId.equals(run.firstMessageId())) newer = run;
+			}
+
+			if (older == null || newer == null || older == newer) return null;
+
+			older.blocks.addAll(newer.blocks);
+			runs.remove(newer);
+			if (tail == newer) {
+				tail = older;
+			}
+			return older;
+		}
+
+		private void index(Run run, Segment segment, int offset, String messageId) {
+			Block block = run.blocks.isEmpty() ? null : run.blocks.get(run.blocks.size() - 1);
+			if (block == null || block.segment != segment || block.end != offset || block.count >= INDEX_INTERVAL) {
+				block = new Block(segment, offset, messageId);
+				run.blocks.add(block);
+			}
+			block.count++;
+			block.lastMessageId = messageId;
+			block.end = segment.next(offset);
+		}
+
+		private void terminate(Segment segment) {
+			if (segment.end + 4 <= segmentSize) {
+				segment.buffer.putInt(segment.end, 0);
+			}
+		}
+
+		private Segment createSegment() throws IOException {
+			File dir = new File(directory, key);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can not create " + dir);
+			}
+
+			long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+			File file = new File(dir, Long.toString(number));
+			Segment segment = new Segment(number, file, map(file));
+			segment.buffer.putInt(0, MAGIC);
+			segment.buffer.putInt(4, VERSION);
+			segment.end = HEADER_SIZE;
+			terminate(segment);
+			segments.add(segment);
+
+			while (segments.size() > maxSegments) {
+				dropOldestSegment();
+			}
+			return segment;
+		}
+
+		private MappedByteBuffer map(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() < segmentSize) {
+					raf.setLength(segmentSize);
+				}
+				// The mapping stays valid after the file has been closed
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * Deletes the oldest segment. A run that loses blocks from its middle, which is possible after it has been
+		 * linked, is split, so that no run has gaps.
+		 */
+		private void dropOldestSegment() {
+			Segment oldest = segments.remove(0);
+
+			List<Run> remaining = new ArrayList<Run>(runs.size());
+			for (Run run : runs) {
+				Run part = null;
+				for (Block block : run.blocks) {
+					if (block.segment == oldest) {
+						part = null;
+						continue;
+					}
+					if (part == null) {
+						part = new Run();
+						remaining.add(part);
+					}
+					part.blocks.add(block);
+				}
+
+				if (run == tail) {
+					// Appending continues only if the last block survived
+					Block last = run.blocks.get(run.blocks.size() - 1);
+					tail = part != null && last.segment != oldest ? part : null;
+				}
+			}
+			runs.clear();
+			runs.addAll(remaining);
+
+			if (!oldest.file.delete()) {
+				logger.warning("MessageArchive: Can not delete " + oldest.file);
+			}
+		}
+
+		boolean contains(String messageId) {
+			try {
+				for (Run run : runs) {
+					if (run.covers(messageId) && find(run, messageId) != null) {
+						return true;
+					}
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "MessageArchive: Can not read archive of " + key, e);
+			}
+			return false;
+		}
+
+		/**
+		 * @return block index and position of the message within the block, or null if the run does not contain it
+		 */
+		private int[] find(Run run, String messageId) throws IOException {
+			int blockIndex = run.blockIndex(messageId);
+			Block block = run.blocks.get(blockIndex);
+
+			int offset = block.offset;
+			for (int i = 0; i < block.count; i++) {
+				int c = IdCodec.compareMessageIds(block.segment.readId(offset), messageId);
+				if (c == 0) return new int[] { blockIndex, i };
+				if (c > 0) break;
+				offset = block.segment.next(offset);
+			}
+			return null;
+		}
+
+		List<Message> read(String anchorMessageId, int length, boolean forward) throws IOException {
+			for (Run run : runs) {
+				if (!run.covers(anchorMessageId)) continue;
+
+				int[] found = find(run, anchorMessageId);
+				if (found == null) continue;
+
+				// Locations of the records, collected outward from the anchor
+				List<Block> blocks = new ArrayList<Block>();
+				List<Integer> offsets = new ArrayList<Integer>();
+
+				int blockIndex = found[0];
+				int[] blockOffsets = run.blocks.get(blockIndex).offsets();
+				int i = forward ? found[1] + 1 : found[1] - 1;
+
+				while (offsets.size() < length) {
+					if (i < 0 || i >= blockOffsets.length) {
+						blockIndex += forward ? 1 : -1;
+						if (blockIndex < 0 || blockIndex >= run.blocks.size()) break;
+
+						blockOffsets = run.blocks.get(blockIndex).offsets();
+						i = forward ? 0 : blockOffsets.length - 1;
+						continue;
+					}
+
+					blocks.add(run.blocks.get(blockIndex));
+					offsets.add(blockOffsets[i]);
+					i += forward ? 1 : -1;
+				}
+
+				List<Message> messages = new ArrayList<Message>(offsets.size());
+				for (int j = 0; j < offsets.size(); j++) {
+					byte[] data = blocks.get(j).segment.readData(offsets.get(j));
+					messages.add(ModelSnapshot.readMessage(new DataInputStream(new ByteArrayInputStream(data)), gson));
+				}
+
+				if (!forward) {
+					Collections.reverse(messages);
+				}
+				return messages;
+			}
+
+			return Collections.emptyList();
+		}
+
+		int count() {
+			int count = 0;
+			for (Run run : runs) {
+				for (Block block : run.blocks) {
+					count += block.count;
+				}
+			}
+			return count;
+		}
+
+		boolean isMapped() {
+			return segmentsMapped;
+		}
+
+		/**
+		 * Releases the mappings of the segments. They are unmapped when the buffers are collected. The index is kept.
+		 */
+		void unmap() {
+			for (Segment segment : segments) {
+				segment.buffer = null;
+			}
+			segmentsMapped = false;
+		}
+
+		void remap() throws IOException {
+			for (Segment segment : segments) {
+				segment.buffer = map(segment.file);
+			}
+			segmentsMapped = true;
+		}
+
+		void delete() {
+			for (Segment segment : segments) {
+				segment.file.delete();
+			}
+			segments.clear();
+			runs.clear();
+			tail = null;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ninchat.client.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>Inverted index of message texts of all conversations of a session. Texts are split into terms at the same
+ * separators as {@link Conversation#HIGHLIGHT_TOKEN_SPLITTER} and folded to lower case one character at a time, as
+ * in {@link HighlightMatcher}.</p>
+ *
+ * <p>The index is maintained incrementally as messages are added to conversations. Messages that the
+ * {@link MessageStore} evicts are removed from the index too, so it only covers the messages that are held in
+ * memory.</p>
+ *
+ * <p>Each query term matches the terms that it is a prefix of. A message matches when it matches all query terms.
+ * Results are ranked by the sum of term weights: saturated term frequency times inverse document frequency, with
+ * exact matches weighing more than prefix matches. Ties go to newer messages.</p>
+ *
+ * <p>The index refers to messages by their ids, so it does not keep the message objects of a compact
+ * {@link MessageStore} alive. Results are resolved with {@link Conversation#findMessage(String)}.</p>
+ */
+final class MessageSearchIndex {
+	/** Weight of a term that the query term is a proper prefix of */
+	private static final double PREFIX_WEIGHT = 0.5;
+
+	private final TreeMap<String, Term> terms = new TreeMap<String, Term>();
+	private final Map<Conversation, TreeSet<Document>> documents = new HashMap<Conversation, TreeSet<Document>>();
+
+	private int documentCount;
+
+	private static class Term {
+		final String text;
+		final Set<Document> documents = new HashSet<Document>();
+
+		Term(String text) {
+			this.text = text;
+		}
+	}
+
+	private static class Document {
+		/** In the order of message ids */
+		static final Comparator<Document> ORDER = new Comparator<Document>() {
+			@Override
+			public int compare(Document a, Document b) {
+				if (a.idString == null && b.idString == null) {
+					return IdCodec.compareKeys(a.idKey, b.idKey);
+				}
+				return a.getMessageId().compareTo(b.getMessageId());
+			}
+		};
+
+		final Conversation conversation;
+		/** Packed message id. Valid when idString is null. */
+		final long idKey;
+		final String idString;
+		final Term[] terms;
+		final int[] frequencies;
+
+		Document(Conversation conversation, Message message, Term[] terms, int[] frequencies) {
+			this.conversation = conversation;
+			this.idKey = message.idKey;
+			this.idString = message.idString;
+			this.terms = terms;
+			this.frequencies = frequencies;
+		}
+
+		String getMessageId() {
+			return idString != null ? idString : IdCodec.decodeMessageId(idKey);
+		}
+	}
+
+	private static class Hit {
+		final Document document;
+		final double score;
+
+		Hit(Document document, double score) {
+			this.document = document;
+			this.score = score;
+		}
+	}
+
+	synchronized void add(Conversation conversation, Message message) {
+		TreeSet<Document> conversationDocuments = documents.get(conversation);
+		if (conversationDocuments != null && conversationDocuments.contains(new Document(conversation, message, null, null))) return;
+
+		List<String> tokens = tokenize(message.getText());
+		if (tokens.isEmpty()) return;
+
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (String token : tokens) {
+			Integer count = counts.get(token);
+			counts.put(token, count != null ? count + 1 : 1);
+		}
+
+		Term[] documentTerms = new Term[counts.size()];
+		int[] frequencies = new int[counts.size()];
+		int i = 0;
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			Term term = terms.get(entry.getKey());
+			if (term == null) {
+				term = new Term(entry.getKey());
+				terms.put(term.text, term);
+			}
+			documentTerms[i] = term;
+			frequencies[i] = entry.getValue();
+			i++;
+		}
+
+		Document document = new Document(conversation, message, documentTerms, frequencies);
+		for (Term term : documentTerms) {
+			term.documents.add(document);
+		}
+
+		if (conversationDocuments == null) {
+			conversationDocuments = new TreeSet<Document>(Document.ORDER);
+			documents.put(conversation, conversationDocuments);
+		}
+		conversationDocuments.add(document);
+		documentCount++;
+	}
+
+	synchronized void add(Conversation conversation, List<Message> messages) {
+		for (Message message : messages) {
+			add(conversation, message);
+		}
+	}
+
+	/**
+	 * Removes messages that are older than the oldest message that is still held by the conversation
+	 *
+	 * @param first Oldest remaining message or null if the conversation has no messages
+	 */
+	synchronized void trim(Conversation conversation, Message first) {
+		TreeSet<Document> conversationDocuments = documents.get(conversation);
+		if (conversationDocuments == null) return;
+
+		SortedSet<Document> evicted = first != null ?
+				conversationDocuments.headSet(new Document(conversation, first, null, null)) : conversationDocuments;
+		for (Document document : evicted) {
+			unlink(document);
+		}
+		evicted.clear();
+
+		if (conversationDocuments.isEmpty()) {
+			documents.remove(conversation);
+		}
+	}
+
+	synchronized void remove(Conversation conversation) {
+		TreeSet<Document> conversationDocuments = documents.remove(conversation);
+		if (conversationDocuments == null) return;
+
+		for (Document document : conversationDocuments) {
+			unlink(document);
+		}
+	}
+
+	synchronized void clear() {
+		terms.clear();
+		documents.clear();
+		documentCount = 0;
+	}
+
+	synchronized int getDocumentCount() {
+		return documentCount;
+	}
+
+	private void unlink(Document document) {
+		for (Term term : document.terms) {
+			term.documents.remove(document);
+			if (term.documents.isEmpty()) {
+				terms.remove(term.text);
+			}
+		}
+		documentCount--;
+	}
+
+	/**
+	 * @param scope Conversation to search or null to search all of them
+	 * @param query Query terms
+	 * @param limit Maximum number of results
+	 * @return results with the best first
+	 */
+	List<MessageSearchResult> search(Conversation scope, String query, int limit) {
+		// Messages are resolved without holding the lock of the index
+		List<Hit> hits = rank(scope, query, limit);
+
+		List<MessageSearchResult> results = new ArrayList<MessageSearchResult>(hits.size());
+		for (Hit hit : hits) {
+			Message message = hit.document.conversation.findMessage(hit.document.getMessageId());
+			if (message != null) {
+				results.add(new MessageSearchResult(hit.document.conversation, message, hit.score));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return best matching documents, the best first
+	 */
+	private synchronized List<Hit> rank(Conversation scope, String query, int limit) {
+		List<String> queryTerms = new ArrayList<String>(new LinkedHashSet<String>(tokenize(query)));
+		if (queryTerms.isEmpty() || limit <= 0) {
+			return Collections.emptyList();
+		}
+
+		// Candidates come from the query term with the fewest postings. Documents are checked for the others.
+		SortedMap<String, Term> narrowest = null;
+		int narrowestSize = Integer.MAX_VALUE;
+		for (String queryTerm : queryTerms) {
+			SortedMap<String, Term> matching = terms.subMap(queryTerm, queryTerm + Character.MAX_VALUE);
+			int size = 0;
+			for (Term term : matching.values()) {
+				size += term.documents.size();
+			}
+			if (size < narrowestSize) {
+				narrowest = matching;
+				narrowestSize = size;
+			}
+		}
+
+		if (narrowestSize == 0) {
+			return Collections.emptyList();
+		}
+
+		Comparator<Hit> worstFirst = new Comparator<Hit>() {
+			@Override
+			public int compare(Hit a, Hit b) {
+				if (a.score != b.score) {
+					return a.score < b.score ? -1 : 1;
+				}
+				return Document.ORDER.compare(a.document, b.document);
+			}
+		};
+
+		PriorityQueue<Hit> best = new PriorityQueue<Hit>(limit + 1, worstFirst);
+		Set<Document> seen = new HashSet<Document>();
+
+		for (Term candidateTerm : narrowest.values()) {
+			for (Document document : candidateTerm.documents) {
+				if (scope != null && document.conversation != scope) continue;
+				if (!seen.add(document)) continue;
+
+				double score = score(document, queryTerms);
+				if (score <= 0) continue;
+
+				best.add(new Hit(document, score));
+				if (best.size() > limit) {
+					best.poll();
+				}
+			}
+		}
+
+		List<Hit> hits = new ArrayList<Hit>(best);
+		Collections.sort(hits, Collections.reverseOrder(worstFirst));
+		return hits;
+	}
+
+	/**
+	 * @return score of the document or zero if it does not match all query terms
+	 */
+	private double score(Document document, List<String> queryTerms) {
+		double score = 0;
+
+		for (String queryTerm : queryTerms) {
+			double termScore = 0;
+
+			for (int i = 0; i < document.terms.length; i++) {
+				Term term = document.terms[i];
+				if (!term.text.startsWith(queryTerm)) continue;
+
+				int frequency = document.frequencies[i];
+				double idf = Math.log(1.0 + (double)documentCount / term.documents.size());
+				double weight = term.text.length() == queryTerm.length() ? 1.0 : PREFIX_WEIGHT;
+				termScore = Math.max(termScore, weight * idf * frequency / (frequency + 1.0));
+			}
+
+			if (termScore == 0) return 0;
+			score += termScore;
+		}
+
+		return score;
+	}
+
+	/**
+	 * Splits the text at separators and folds the terms to lower case
+	 */
+	static List<String> tokenize(String text) {
+		if (text == null) return Collections.emptyList();
+
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		int length = text.length();
+
+		for (int i = 0; i <= length; i++) {
+			char c = i < length ? text.charAt(i) : ' ';
+			if (HighlightMatcher.isSeparator(c)) {
+				if (sb.length() > 0) {
+					tokens.add(sb.toString());
+					sb.setLength(0);
+				}
+			} else {
+				sb.append(Character.toLowerCase(c));
+			}
+		}
+
+		return tokens;
+	}
+}
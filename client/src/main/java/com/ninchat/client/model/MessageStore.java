@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.SortedSet;
+
+/**
+ * <p>MessageStore decides how messages of conversations are held in memory. One store is shared by all
+ * conversations of a {@link Session}. This default implementation keeps everything until the conversation is
+ * removed.</p>
+ *
+ * <p>Subclasses may evict messages through {@link #evict(Conversation, int)}. Evicted messages can be loaded again
+ * with {@link Conversation#loadHistory(com.ninchat.client.transport.AckListener)} or a {@link HistoryCursor}.</p>
+ *
+ * @see WindowedMessageStore
+ */
+public class MessageStore {
+	private final SenderTable senders = new SenderTable();
+
+	private volatile boolean compact;
+
+	/**
+	 * @return true if new conversations hold their messages in a {@link CompactMessageArray}
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Makes new conversations hold their messages in a {@link CompactMessageArray}. The array trades some CPU on
+	 * each access for a considerably smaller footprint. Existing conversations are not affected.
+	 *
+	 * @param compact true to use compact storage
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	/**
+	 * Creates a container for messages of a new conversation.
+	 *
+	 * @param conversation Conversation that is being created
+	 * @return an empty sorted set
+	 */
+	protected SortedSet<Message> createMessages(Conversation conversation) {
+		return compact ? new CompactMessageArray(senders) : new SortedMessageArray();
+	}
+
+	/**
+	 * Called after a new message has been added to the conversation.
+	 *
+	 * @param conversation Conversation
+	 * @param added Number of messages that were actually added
+	 */
+	protected void onMessagesReceived(Conversation conversation, int added) { }
+
+	/**
+	 * Called after a batch of history messages has been added to the conversation.
+	 *
+	 * @param conversation Conversation
+	 * @param added Number of messages that were actually added
+	 */
+	protected void onHistoryLoaded(Conversation conversation, int added) { }
+
+	/**
+	 * Called when messages of the conversation are accessed or marked seen.
+	 *
+	 * @param conversation Conversation
+	 */
+	protected void onViewed(Conversation conversation) { }
+
+	/**
+	 * Called when the conversation has been removed from the session.
+	 *
+	 * @param conversation Conversation
+	 */
+	protected void onRemoved(Conversation conversation) { }
+
+	/**
+	 * Removes oldest messages from the conversation.
+	 *
+	 * @param conversation Conversation
+	 * @param count Number of messages to remove
+	 * @return number of messages actually removed
+	 */
+	protected final int evict(Conversation conversation, int count) {
+		return conversation.evictOldestMessages(count);
+	}
+}
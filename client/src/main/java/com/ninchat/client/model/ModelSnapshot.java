@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.ninchat.client.transport.Payload;
+import com.ninchat.client.transport.payloads.MessagePayload;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Binary snapshot of a session model: realms, users, audience queues, channels and dialogues with a bounded tail
+ * of messages each. A snapshot is written by {@link Session#saveSnapshot(java.io.OutputStream, int)} and read
+ * into a virgin session by {@link Session#loadSnapshot(java.io.InputStream)}.
+ * <p>
+ * Strings are written as length prefixed UTF-8 and may be null. Message payloads are stored as their JSON
+ * representation.
+ */
+final class ModelSnapshot {
+	private static final int MAGIC = 0x4e434d53; // "NCMS"
+	private static final int VERSION = 1;
+
+	private final Gson gson = new Gson();
+
+	void write(Session session, DataOutputStream out, int messagesPerConversation) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		writeString(out, session.getUserId());
+
+		Collection<Realm> realms = session.getRealms().values();
+		synchronized (session.getRealms()) {
+			realms = new ArrayList<Realm>(realms);
+		}
+		out.writeInt(realms.size());
+		for (Realm realm : realms) {
+			writeString(out, realm.getId());
+			writeString(out, realm.getName());
+			writeString(out, realm.getOwnerId());
+			out.writeBoolean(realm.isSuspended());
+			out.writeBoolean(realm.isDescribed());
+		}
+
+		Collection<User> users = session.getUsers().values();
+		synchronized (session.getUsers()) {
+			users = new ArrayList<User>(users);
+		}
+		out.writeInt(users.size());
+		for (User user : users) {
+			writeString(out, user.getUserId());
+			writeString(out, user.getName());
+			writeString(out, user.getRealName());
+			writeString(out, user.getIconURL() != null ? user.getIconURL().toString() : null);
+			out.writeBoolean(user.isAdmin());
+			out.writeBoolean(user.isConnected());
+			out.writeBoolean(user.isGuest());
+			out.writeBoolean(user.isDeleted());
+			out.writeBoolean(user.isLoaded());
+			out.writeLong(user.getLastAction());
+			out.writeLong(user.getIdle() != null ? user.getIdle() : -1);
+		}
+
+		Collection<AudienceQueue> queues = session.getAudienceQueues();
+		out.writeInt(queues.size());
+		for (AudienceQueue queue : queues) {
+			writeString(out, queue.getId());
+			writeString(out, queue.getName());
+			writeString(out, queue.getRealm() != null ? queue.getRealm().getId() : null);
+			out.writeInt(queue.getLength());
+			out.writeBoolean(queue.isClosed());
+		}
+
+		List<Channel> channels = new ArrayList<Channel>();
+		List<Dialogue> dialogues = new ArrayList<Dialogue>();
+		for (Conversation conversation : session.getConversations()) {
+			if (conversation instanceof Channel) {
+				channels.add((Channel)conversation);
+			} else {
+				dialogues.add((Dialogue)conversation);
+			}
+		}
+
+		out.writeInt(channels.size());
+		for (Channel channel : channels) {
+			writeString(out, channel.getId());
+			writeString(out, channel.getRealm() != null ? channel.getRealm().getId() : null);
+			writeString(out, channel.name);
+			writeString(out, channel.getTopic());
+			writeString(out, channel.getOwnerId());
+			out.writeBoolean(channel.isAccessPrivate());
+			out.writeBoolean(channel.isAccessPublic());
+			out.writeBoolean(channel.isSuspended());
+			out.writeBoolean(channel.isDescribed()); // Not restored
+			writeConversation(out, channel, messagesPerConversation);
+		}
+
+		out.writeInt(dialogues.size());
+		for (Dialogue dialogue : dialogues) {
+			writeString(out, dialogue.getId());
+			writeString(out, dialogue.getAudienceQueue() != null ? dialogue.getAudienceQueue().getId() : null);
+			writeString(out, dialogue.getAudienceMetadata() != null ? dialogue.getAudienceMetadata().toString() : null);
+			writeConversation(out, dialogue, messagesPerConversation);
+		}
+
+		out.flush();
+	}
+
+	private void writeConversation(DataOutputStream out, Conversation conversation, int limit) throws IOException {
+		out.writeByte(conversation.getActivityStatus().ordinal());
+
+		List<Message> tail = new ArrayList<Message>(limit);
+		String lastSeenMessageId;
+		synchronized (conversation.messages) {
+			lastSeenMessageId = conversation.getLastSeenMessageId();
+
+			int skip = conversation.messages.size() - limit;
+			for (Iterator<Message> i = conversation.messages.iterator(); i.hasNext(); ) {
+				Message message = i.next();
+				if (skip-- <= 0) tail.add(message);
+			}
+		}
+
+		writeString(out, lastSeenMessageId);
+
+		out.writeInt(tail.size());
+		for (Message message : tail) {
+			writeMessage(out, message, gson);
+		}
+	}
+
+	/**
+	 * Writes a message. The id is written first, so it can be read without decoding the rest of the message.
+	 */
+	static void writeMessage(DataOutputStream out, Message message, Gson gson) throws IOException {
+		writeString(out, message.getId());
+		out.writeLong(message.getTime() != null ? message.getTime().getTime() : Long.MIN_VALUE);
+		writeString(out, message.getType());
+		writeString(out, message.getUserId());
+		writeString(out, message.userName);
+		out.writeFloat(message.ttl);
+		out.writeBoolean(message.fold);
+		out.writeBoolean(message.hidden);
+
+		Payload payload = message.payload;
+		if (payload instanceof MessagePayload) {
+			writeString(out, ((MessagePayload)payload).getMessageType());
+			writeString(out, gson.toJson(payload));
+		} else {
+			writeString(out, null);
+		}
+	}
+
+	/**
+	 * Reads a snapshot into a virgin session
+	 *
+	 * @param createdChannels Receives channels that were created
+	 * @param createdDialogues Receives dialogues that were created
+	 */
+	void read(Session session, DataInputStream in, List<Channel> createdChannels, List<Dialogue> createdDialogues)
+			throws IOException {
+
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a model snapshot");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported snapshot version: " + version);
+		}
+
+		String sessionUserId = readString(in);
+
+		for (int n = in.readInt(); n > 0; n--) {
+			Realm realm = session.getOrCreateRealm(readString(in));
+			realm.setName(readString(in));
+			realm.setOwnerId(readString(in));
+			realm.setSuspended(in.readBoolean());
+			realm.setDescribed(in.readBoolean());
+			session.realmRestored(realm);
+		}
+
+		for (int n = in.readInt(); n > 0; n--) {
+			User user = session.getOrCreateUser(readString(in));
+			user.setName(readString(in));
+			user.setRealName(readString(in));
+			String iconURL = readString(in);
+			if (iconURL != null) {
+				try {
+					user.setIconURL(new URL(iconURL));
+				} catch (MalformedURLException e) {
+					// Ignore, it was valid when it was saved
+				}
+			}
+			user.setAdmin(in.readBoolean());
+			user.setConnected(in.readBoolean());
+			user.setGuest(in.readBoolean());
+			user.setDeleted(in.readBoolean());
+			user.setLoaded(in.readBoolean());
+			user.setLastAction(in.readLong());
+			long idle = in.readLong();
+			user.setIdle(idle >= 0 ? idle : null);
+			session.reposition(user);
+		}
+
+		for (int n = in.readInt(); n > 0; n--) {
+			AudienceQueue queue = session.getOrCreateAudienceQueue(readString(in));
+			queue.setName(readString(in));
+			String realmId = readString(in);
+			if (realmId != null) {
+				queue.setRealm(session.getOrCreateRealm(realmId));
+			}
+			queue.setLength(in.readInt());
+			queue.setClosed(in.readBoolean());
+			session.audienceQueueRestored(queue);
+		}
+
+		for (int n = in.readInt(); n > 0; n--) {
+			String channelId = readString(in);
+			String realmId = readString(in);
+			Channel channel = session.getOrCreateChannel(channelId, realmId != null ? session.getOrCreateRealm(realmId) : null);
+			channel.name = readString(in);
+			channel.setTopic(readString(in));
+			channel.setOwnerId(readString(in));
+			channel.setAccessPrivate(in.readBoolean());
+			channel.setAccessPublic(in.readBoolean());
+			channel.setSuspended(in.readBoolean());
+			in.readBoolean(); // Members are not saved, so the channel has not been described in this session
+			session.reposition(channel);
+			readConversation(in, channel);
+			createdChannels.add(channel);
+		}
+
+		for (int n = in.readInt(); n > 0; n--) {
+			Dialogue dialogue = session.getOrCreateDialogue(readString(in));
+			String queueId = readString(in);
+			if (queueId != null) {
+				dialogue.setAudienceQueue(session.getOrCreateAudienceQueue(queueId));
+			}
+			String metadata = readString(in);
+			if (metadata != null) {
+				try {
+					JsonElement element = new JsonParser().parse(metadata);
+					if (element.isJsonObject()) {
+						dialogue.setAudienceMetadata(element.getAsJsonObject());
+					}
+				} catch (JsonParseException e) {
+					// Metadata is optional
+				}
+			}
+			readConversation(in, dialogue);
+			createdDialogues.add(dialogue);
+		}
+
+		session.snapshotRestored(sessionUserId);
+	}
+
+	private void readConversation(DataInputStream in, Conversation conversation) throws IOException {
+		int status = in.readByte();
+		Conversation.ActivityStatus[] statuses = Conversation.ActivityStatus.values();
+		if (status < 0 || status >= statuses.length) {
+			throw new IOException("Invalid activity status: " + status);
+		}
+
+		String lastSeenMessageId = readString(in);
+
+		int count = in.readInt();
+		List<Message> messages = new ArrayList<Message>(count);
+		for (; count > 0; count--) {
+			messages.add(readMessage(in, gson));
+		}
+
+		conversation.restore(lastSeenMessageId, messages);
+		conversation.setActivityStatus(statuses[status]);
+	}
+
+	static Message readMessage(DataInputStream in, Gson gson) throws IOException {
+		String id = readString(in);
+		long time = in.readLong();
+		String type = readString(in);
+		String userId = readString(in);
+		String userName = readString(in);
+		float ttl = in.readFloat();
+		boolean fold = in.readBoolean();
+		boolean hidden = in.readBoolean();
+
+		Payload payload = null;
+		String payloadType = readString(in);
+		if (payloadType != null) {
+			String json = readString(in);
+			Class<? extends MessagePayload> payloadClass = MessagePayload.messageClasses.get(payloadType);
+			if (payloadClass != null) {
+				try {
+					payload = gson.fromJson(json, payloadClass);
+				} catch (JsonParseException e) {
+					// Keep the message without its payload
+				}
+			}
+		}
+
+		Message message = new Message(id, payload);
+		message.time = time != Long.MIN_VALUE ? new Date(time) : null;
+		message.type = type;
+		message.setUserId(userId);
+		message.userName = userName;
+		message.ttl = ttl;
+		message.fold = fold;
+		message.hidden = hidden;
+		return message;
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
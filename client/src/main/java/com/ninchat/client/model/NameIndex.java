@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ninchat.client.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Finds objects by the prefix of their name, ignoring case. Names are folded to lower case one character at a
+ * time, as in {@link HighlightMatcher}.</p>
+ *
+ * <p>Each name is indexed from its start and from the start of each word that follows a separator, so that
+ * "smi" finds "John Smith" and the queue part of a dialogue name. Keys are kept in a sorted array, which is
+ * binary searched for the prefix. Objects are updated when their names change.</p>
+ */
+final class NameIndex<T> {
+	private final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+	private final Map<T, List<Entry<T>>> entriesByTarget = new HashMap<T, List<Entry<T>>>();
+
+	/** Breaks ties between equal keys, so that an entry can be found by binary search */
+	private long nextSequence;
+
+	private static class Entry<T> implements Comparable<Entry<T>> {
+		final String key;
+		final long sequence;
+		/** Key starts at the start of the name */
+		final boolean whole;
+		final T target;
+
+		Entry(String key, long sequence, boolean whole, T target) {
+			this.key = key;
+			this.sequence = sequence;
+			this.whole = whole;
+			this.target = target;
+		}
+
+		@Override
+		public int compareTo(Entry<T> o) {
+			int c = key.compareTo(o.key);
+			if (c != 0) return c;
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Adds the object or updates its name
+	 *
+	 * @param name Name or null to remove the object
+	 */
+	synchronized void update(T target, String name) {
+		List<Entry<T>> old = entriesByTarget.get(target);
+		if (old != null) {
+			if (name != null && fold(name).equals(old.get(0).key)) return;
+			remove(target);
+		}
+
+		if (name == null || name.length() == 0) return;
+
+		String folded = fold(name);
+		long sequence = nextSequence++;
+		List<Entry<T>> added = new ArrayList<Entry<T>>(2);
+
+		for (int i = 0; i < folded.length(); i++) {
+			boolean wordStart = i == 0 ||
+					(HighlightMatcher.isSeparator(folded.charAt(i - 1)) && !HighlightMatcher.isSeparator(folded.charAt(i)));
+			if (!wordStart) continue;
+
+			Entry<T> entry = new Entry<T>(folded.substring(i), sequence, i == 0, target);
+			entries.add(-Collections.binarySearch(entries, entry) - 1, entry);
+			added.add(entry);
+		}
+
+		entriesByTarget.put(target, added);
+	}
+
+	synchronized void remove(T target) {
+		List<Entry<T>> old = entriesByTarget.remove(target);
+		if (old == null) return;
+
+		for (Entry<T> entry : old) {
+			int index = Collections.binarySearch(entries, entry);
+			if (index >= 0) {
+				entries.remove(index);
+			}
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		entriesByTarget.clear();
+	}
+
+	synchronized int size() {
+		return entriesByTarget.size();
+	}
+
+	/**
+	 * @param prefix Prefix of the name or of a word of it
+	 * @param limit Maximum number of results
+	 * @return objects whose name starts with the prefix, followed by objects with a later word that starts with
+	 *         it. Both groups are in the alphabetical order of the matching part.
+	 */
+	synchronized List<T> find(String prefix, int limit) {
+		if (prefix == null || limit <= 0) return Collections.emptyList();
+
+		String folded = fold(prefix);
+
+		int index = Collections.binarySearch(entries, new Entry<T>(folded, Long.MIN_VALUE, true, null));
+		if (index < 0) index = -index - 1;
+
+		Set<T> whole = new LinkedHashSet<T>();
+		Set<T> words = new LinkedHashSet<T>();
+
+		for (; index < entries.size() && whole.size() < limit; index++) {
+			Entry<T> entry = entries.get(index);
+			if (!entry.key.startsWith(folded)) break;
+
+			if (entry.whole) {
+				whole.add(entry.target);
+			} else if (words.size() < limit) {
+				words.add(entry.target);
+			}
+		}
+
+		List<T> result = new ArrayList<T>(whole);
+		for (T target : words) {
+			if (result.size() >= limit) break;
+			if (!whole.contains(target)) result.add(target);
+		}
+		return result;
+	}
+
+	private static String fold(String s) {
+		char[] chars = new char[s.length()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(s.charAt(i));
+		}
+		return new String(chars);
+	}
+}
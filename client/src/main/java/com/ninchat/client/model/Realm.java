@@ -74,6 +74,10 @@ public class Realm {
 		return suspended;
 	}
 
+	void setSuspended(boolean suspended) {
+		this.suspended = suspended;
+	}
+
 	public boolean isDescribed() {
 		return described;
 	}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps distinct message senders (user id and name) to small integers. Shared by compact message arrays of a
+ * session. Entries are reference counted by the stored messages; the index of an entry that is no longer
+ * referenced is reused.
+ */
+final class SenderTable {
+	private final Map<Sender, Integer> indices = new HashMap<Sender, Integer>();
+	private final List<Sender> senders = new ArrayList<Sender>();
+
+	private int[] references = new int[16];
+
+	/** Indices of released entries */
+	private int[] free = new int[16];
+	private int freeCount;
+
+	/**
+	 * Returns the index of the sender and adds a reference to it
+	 */
+	synchronized int intern(long userKey, String userIdString, String userName) {
+		Sender sender = new Sender(userKey, userIdString, userName);
+
+		Integer index = indices.get(sender);
+		if (index == null) {
+			if (freeCount > 0) {
+				index = free[--freeCount];
+				senders.set(index, sender);
+			} else {
+				index = senders.size();
+				senders.add(sender);
+				if (index == references.length) {
+					references = Arrays.copyOf(references, index * 2);
+				}
+			}
+			indices.put(sender, index);
+		}
+
+		references[index]++;
+
+		return index;
+	}
+
+	/**
+	 * Removes a reference. The entry is removed when the last reference is gone.
+	 */
+	synchronized void release(int index) {
+		if (--references[index] > 0) {
+			return;
+		}
+
+		indices.remove(senders.set(index, null));
+
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, freeCount * 2);
+		}
+		free[freeCount++] = index;
+	}
+
+	synchronized Sender get(int index) {
+		return senders.get(index);
+	}
+
+	/**
+	 * @return number of distinct senders that are referenced
+	 */
+	synchronized int size() {
+		return indices.size();
+	}
+
+	static final class Sender {
+		final long userKey;
+		final String userIdString;
+		final String userName;
+
+		Sender(long userKey, String userIdString, String userName) {
+			this.userKey = userKey;
+			this.userIdString = userIdString;
+			this.userName = userName;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Sender)) return false;
+
+			Sender s = (Sender)o;
+			return userKey == s.userKey &&
+					(userIdString != null ? userIdString.equals(s.userIdString) : s.userIdString == null) &&
+					(userName != null ? userName.equals(s.userName) : s.userName == null);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = (int)(userKey ^ (userKey >>> 32));
+			h = 31 * h + (userIdString != null ? userIdString.hashCode() : 0);
+			h = 31 * h + (userName != null ? userName.hashCode() : 0);
+			return h;
+		}
+	}
+}
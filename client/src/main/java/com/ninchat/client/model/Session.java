@@ -34,8 +34,18 @@ import com.ninchat.client.transport.events.Error;
 import com.ninchat.client.transport.parameters.*;
 import com.ninchat.client.transport.payloads.NinchatTextMessage;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,22 +75,45 @@ public class Session {
 
 	private boolean idle;
 
-	private final Map<String, Channel> channels = new HashMap<String, Channel>();
-	private final Map<String, Dialogue> dialogues = new HashMap<String, Dialogue>();
+	private final SnapshotMap<String, Channel> channels = new SnapshotMap<String, Channel>();
+	private final SnapshotMap<String, Dialogue> dialogues = new SnapshotMap<String, Dialogue>();
 
-	private final Map<String, Realm> realms = new HashMap<String, Realm>();
+	private final ConversationIndex conversationIndex = new ConversationIndex();
+	private final ActivityCounters activityCounters = new ActivityCounters();
+
+	private final MembershipIndex membershipIndex = new MembershipIndex();
+
+	public static final int DEFAULT_COMPACT_MEMBER_THRESHOLD = 5000;
+
+	private volatile int compactMemberThreshold = DEFAULT_COMPACT_MEMBER_THRESHOLD;
+
+	private final SnapshotMap<String, Realm> realms = new SnapshotMap<String, Realm>();
 	private final Set<Realm> userRealms = new HashSet<Realm>();
 
 	private final Map<String, AudienceQueue> audienceQueues = new HashMap<String, AudienceQueue>();
+	private final AudienceQueueIndex audienceQueueIndex = new AudienceQueueIndex();
 
-	private final Map<String, User> users = new HashMap<String, User>();
+	private final NameIndex<Conversation> conversationNames = new NameIndex<Conversation>();
+	private final NameIndex<User> userNames = new NameIndex<User>();
+
+	private final UserCache userCache = new UserCache(userNames);
+	private final SnapshotMap<String, User> users = userCache.users;
+
+	private final DescribeFlights describeFlights = new DescribeFlights();
 
 	private final Set<SessionListener> sessionListeners = new CopyOnWriteArraySet<SessionListener>(); // Synchronization not required
 	private final Set<ActivityStatusListener> activityStatusListeners = new CopyOnWriteArraySet<ActivityStatusListener>();
 
 	private final Map<Conversation, List<Message>> openMessageBundles = new HashMap<Conversation, List<Message>>();
 
-	private final Set<String> highlightTokens = new CopyOnWriteArraySet<String>();
+	private final Set<String> highlightTokens = new HighlightTokenSet();
+
+	/** Compiled from highlightTokens on demand. Reset when the tokens change. */
+	private volatile HighlightMatcher highlightMatcher;
+
+	private MessageStore messageStore = new MessageStore();
+	private volatile MessageArchive messageArchive;
+	private volatile MessageSearchIndex messageSearchIndex;
 
 	private boolean autoEstablish = true;
 
@@ -88,6 +121,26 @@ public class Session {
 
 	private volatile boolean attributesLoaded = false;
 
+	/** Number of conversations per created notification while session_created is streamed */
+	private static final int IMPORT_BATCH_SIZE = 100;
+
+	public static final int DEFAULT_ATTRIBUTE_LOADER_CONCURRENCY = 4;
+
+	private volatile int attributeLoaderConcurrency = DEFAULT_ATTRIBUTE_LOADER_CONCURRENCY;
+
+	/** Loader of the current session, null when done */
+	private volatile AttributeLoader attributeLoader;
+
+	/** Set if the model has been loaded from a snapshot that has not been reconciled with session_created yet */
+	private volatile boolean snapshotLoaded;
+
+	/** Set while a session restored from a SessionStateStore is being resumed */
+	private volatile boolean resumingStoredSession;
+
+	/** Set in single-writer mode. All model mutation runs on its thread. */
+	private volatile ExecutorService modelExecutor;
+	private volatile Thread modelThread;
+
 	public Session(AbstractTransport transport) {
 		this.transport = transport;
 
@@ -112,6 +165,7 @@ public class Session {
 		transport.addEventListener(QueueJoined.class, new QueueJoinedListener());
 		transport.addEventListener(DialogueUpdated.class, new DialogueUpdatedListener());
 
+		transport.addEventListener(Pong.class, new PongListener());
 		transport.addEventListener(Error.class, new ErrorListener());
 
 		transport.addTransportStatusListener(new SessionTransportStatusListener());
@@ -129,6 +183,171 @@ public class Session {
 		return transport;
 	}
 
+	public MessageStore getMessageStore() {
+		return messageStore;
+	}
+
+	public MessageArchive getMessageArchive() {
+		return messageArchive;
+	}
+
+	/**
+	 * Sets the archive that messages of conversations are written to. {@link HistoryCursor}s read pages from the
+	 * archive before they load history from the server. The archive is not closed by the session.
+	 *
+	 * @param messageArchive MessageArchive or null to stop archiving
+	 */
+	public void setMessageArchive(MessageArchive messageArchive) {
+		this.messageArchive = messageArchive;
+	}
+
+	MessageSearchIndex getMessageSearchIndex() {
+		return messageSearchIndex;
+	}
+
+	public boolean isMessageSearchEnabled() {
+		return messageSearchIndex != null;
+	}
+
+	/**
+	 * Makes the session maintain a full-text index of the messages that conversations hold in memory. The index
+	 * follows eviction of the {@link MessageStore}. Must be set before session has been started.
+	 *
+	 * @see #searchMessages(String, int)
+	 */
+	public void setMessageSearchEnabled(boolean messageSearchEnabled) {
+		if (status != Status.VIRGIN) {
+			throw new IllegalStateException("Message search must be enabled before session has been started!");
+		}
+
+		messageSearchIndex = messageSearchEnabled ? new MessageSearchIndex() : null;
+	}
+
+	/**
+	 * Searches messages of all conversations. Each query term matches the words that it is a prefix of, ignoring
+	 * case, and a message must match all of them. Only messages that are held in memory are searched.
+	 *
+	 * @param query Search terms
+	 * @param limit Maximum number of results
+	 * @return results with the most relevant first
+	 * @throws IllegalStateException if message search has not been enabled
+	 */
+	public List<MessageSearchResult> searchMessages(String query, int limit) {
+		return searchMessages(null, query, limit);
+	}
+
+	/**
+	 * Searches messages of a single conversation. See {@link #searchMessages(String, int)}.
+	 *
+	 * @param conversation Conversation to search or null to search all of them
+	 */
+	public List<MessageSearchResult> searchMessages(Conversation conversation, String query, int limit) {
+		MessageSearchIndex index = messageSearchIndex;
+		if (index == null) {
+			throw new IllegalStateException("Message search has not been enabled!");
+		}
+
+		return index.search(conversation, query, limit);
+	}
+
+	public boolean isStreamingImport() {
+		return transport.isStreamSessionCreated();
+	}
+
+	/**
+	 * Makes the session established as soon as session_created has been received. Channels and dialogues of the
+	 * event are imported after {@link SessionListener#onSessionEstablished(Session)} and reported in batches with
+	 * {@link SessionListener#onChannelsCreated(Session, List)} and
+	 * {@link SessionListener#onDialoguesCreated(Session, List)}. {@link SessionListener#onSessionImported(Session)}
+	 * is called when all of them have been imported.
+	 */
+	public void setStreamingImport(boolean streamingImport) {
+		transport.setStreamSessionCreated(streamingImport);
+	}
+
+	public boolean isSingleWriter() {
+		return modelExecutor != null;
+	}
+
+	/**
+	 * <p>Enables or disables single-writer mode. Must be set before session has been started.</p>
+	 *
+	 * <p>In single-writer mode all transport events and action acknowledgements are processed on a single model
+	 * thread, in the order they arrive. {@link #getChannels()}, {@link #getDialogues()}, {@link #getUsers()},
+	 * {@link #getRealms()} and {@link Channel#getMembers()} return immutable snapshots, which any thread can read
+	 * without locking. A snapshot is copied once after a change and shared until the next one.</p>
+	 *
+	 * <p>Session and listener callbacks are called on the model thread. Use {@link #execute(Runnable)} to run
+	 * own modifications there.</p>
+	 *
+	 * @param singleWriter true to enable
+	 */
+	public void setSingleWriter(boolean singleWriter) {
+		if (status != Status.VIRGIN) {
+			throw new IllegalStateException("Single-writer mode must be set before session has been started!");
+		}
+
+		if (singleWriter == isSingleWriter()) return;
+
+		if (singleWriter) {
+			modelExecutor = createModelExecutor();
+			transport.setListenerExecutor(modelExecutor);
+
+		} else {
+			transport.setListenerExecutor(null);
+			modelExecutor.shutdown();
+			modelExecutor = null;
+			modelThread = null;
+		}
+	}
+
+	/**
+	 * The model thread is started when the first task is submitted
+	 */
+	private ExecutorService createModelExecutor() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "NinchatModel");
+				thread.setDaemon(true);
+				modelThread = thread;
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs the task on the model thread in single-writer mode. Otherwise, or if called on the model thread, the task
+	 * is run immediately.
+	 *
+	 * @param task Task that reads or modifies the model
+	 */
+	public void execute(Runnable task) {
+		ExecutorService executor = modelExecutor;
+		if (executor != null && Thread.currentThread() != modelThread) {
+			executor.execute(task);
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Sets the store that holds messages of conversations. Must be set before session has been started.
+	 *
+	 * @param messageStore MessageStore, e.g. {@link WindowedMessageStore}
+	 */
+	public void setMessageStore(MessageStore messageStore) {
+		if (status != Status.VIRGIN) {
+			throw new IllegalStateException("MessageStore must be set before session has been started!");
+		}
+
+		if (messageStore == null) {
+			throw new IllegalArgumentException("MessageStore can not be null!");
+		}
+
+		this.messageStore = messageStore;
+	}
+
 	public Status getStatus() {
 		return status;
 	}
@@ -149,35 +368,102 @@ public class Session {
 	}
 
 	public Map<String, User> getUsers() {
-		return users;
+		return isSingleWriter() ? users.snapshot() : users;
 	}
 
-	public User getUser(String userId) {
-		synchronized (users) {
-			return users.get(userId);
+	/**
+	 * Returns a known user. A user that has been evicted from the cache is created again and described from the
+	 * server, so its attributes become available later. In single-writer mode this is done on the model thread
+	 * and null is returned when called from other threads.
+	 *
+	 * @return the user or null if the user is not known
+	 */
+	public User getUser(final String userId) {
+		if (isSingleWriter() && Thread.currentThread() != modelThread) {
+			User user = users.snapshot().get(userId);
+			if (user == null && userCache.isEvicted(userId)) {
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						getUser(userId);
+					}
+				});
+			}
+			return user;
+		}
+
+		User user = userCache.get(userId);
+		if (user == null && userCache.isEvicted(userId)) {
+			user = getOrCreateUser(userId);
+
+			if (status == Status.ESTABLISHED) {
+				// A cached outcome of an earlier describe belongs to the evicted instance
+				describeFlights.invalidate("user:" + userId);
+				describeUser(userId, null);
+			}
 		}
+		return user;
+	}
+
+	/**
+	 * Returns a known user without describing evicted users
+	 */
+	User findUser(String userId) {
+		return userCache.get(userId);
 	}
 
+	/**
+	 * Returns a cached user or creates a new one. Callers are expected to import the attributes of the user, so
+	 * evicted users are not described.
+	 */
 	User getOrCreateUser(String userId) {
 		synchronized (users) {
-			User user = users.get(userId);
+			User user = userCache.get(userId);
 			if (user == null) {
 				user = new User(userId);
-				users.put(userId, user);
+				userCache.add(user);
 
 				if (logger.isLoggable(Level.FINE)) logger.fine("Created new User object: " + userId);
 			}
-
 			return user;
 		}
 	}
 
+	/**
+	 * Keeps the user cached until released. Called for users held by members, dialogues and the session.
+	 */
+	void retainUser(User user) {
+		userCache.retain(user);
+	}
+
+	void releaseUser(User user) {
+		userCache.release(user);
+	}
+
+	public int getUserCacheCapacity() {
+		return userCache.getCapacity();
+	}
+
+	/**
+	 * Sets the number of users that are kept although no channel member or dialogue refers to them. The least
+	 * recently used of them are evicted first. An evicted user is described again when it is asked for with
+	 * {@link #getUser(String)}.
+	 *
+	 * @param capacity Number of unreferenced users, at least one, or Integer.MAX_VALUE to disable eviction
+	 */
+	public void setUserCacheCapacity(int capacity) {
+		userCache.setCapacity(capacity);
+	}
+
 	Dialogue getOrCreateDialogue(String userId) {
 		synchronized (dialogues) {
 			Dialogue dialogue = dialogues.get(userId);
 			if (dialogue == null) {
 				dialogue = new Dialogue(this, userId);
 				dialogues.put(userId, dialogue);
+				conversationIndex.add(dialogue);
+				conversationNames.update(dialogue, dialogue.getName());
+				activityCounters.add(dialogue);
 
 				if (logger.isLoggable(Level.FINE)) logger.fine("Created new Dialogue: " + userId);
 			}
@@ -192,6 +478,9 @@ public class Session {
 			if (channel == null) {
 				channel = new Channel(this, channelId, realm);
 				channels.put(channelId, channel);
+				conversationIndex.add(channel);
+				conversationNames.update(channel, channel.getName());
+				activityCounters.add(channel);
 
 				if (logger.isLoggable(Level.FINE)) logger.fine("Created new Channel: " + channelId);
 			}
@@ -215,11 +504,12 @@ public class Session {
 	}
 
 	AudienceQueue getOrCreateAudienceQueue(String queueId) {
-		synchronized (realms) {
+		synchronized (audienceQueues) {
 			AudienceQueue audienceQueue = audienceQueues.get(queueId);
 			if (audienceQueue == null) {
 				audienceQueue = new AudienceQueue(queueId);
 				audienceQueues.put(queueId, audienceQueue);
+				audienceQueueIndex.add(audienceQueue);
 
 				if (logger.isLoggable(Level.FINE)) logger.fine("Created new AudienceQueue: " + queueId);
 			}
@@ -259,51 +549,88 @@ public class Session {
 	 * @return
 	 */
 	public Channel.ActivityStatus getActivityStatus() {
-		Conversation.ActivityStatus status = Conversation.ActivityStatus.NONE;
-
-		for (Conversation c : getConversations()) {
-			Conversation.ActivityStatus a = c.getActivityStatus();
-			if (a == Conversation.ActivityStatus.UNREAD && c instanceof Dialogue) a = Conversation.ActivityStatus.HIGHLIGHT;
-			if (a.getPriority() > status.getPriority()) {
-				status = a;
-			}
-		}
-
-		return status;
+		return activityCounters.getActivityStatus();
 	}
 
 	public int getConversationsWithActivitiesCount() {
-		int count = 0;
-		for (Conversation c : getConversations()) {
-			if (c.getActivityStatus() != Conversation.ActivityStatus.NONE) {
-				count++;
-			}
-		}
+		return activityCounters.countActive();
+	}
+
+	/**
+	 * Returns the number of channels or dialogues that have the given activity status
+	 *
+	 * @param dialogues true to count dialogues, false to count channels
+	 * @param activityStatus Activity status
+	 */
+	public int getConversationCount(boolean dialogues, Conversation.ActivityStatus activityStatus) {
+		return activityCounters.count(dialogues, activityStatus);
+	}
 
-		return count;
+	void activityStatusChanged(Conversation conversation, Conversation.ActivityStatus activityStatus) {
+		activityCounters.update(conversation, activityStatus);
 	}
 
+	/**
+	 * Describes a realm. Concurrent and recently succeeded describes of the same realm are not repeated, see
+	 * {@link #setDescribeTtl(long)}.
+	 */
 	public void describeRealm(String realmId, AckListener ackListener) {
+		AckListener flight = beginDescribe("realm:" + realmId, ackListener);
+		if (flight == null) return;
+
 		DescribeRealm a = new DescribeRealm();
 		a.setRealmId(realmId);
-		a.setAckListener(ackListener);
+		a.setAckListener(flight);
 		transport.enqueue(a);
 	}
 
 	public void describeRealmQueues(String realmId, AckListener ackListener) {
+		AckListener flight = beginDescribe("realm_queues:" + realmId, ackListener);
+		if (flight == null) return;
+
 		DescribeRealmQueues a = new DescribeRealmQueues();
 		a.setRealmId(realmId);
-		a.setAckListener(ackListener);
+		a.setAckListener(flight);
 		transport.enqueue(a);
 	}
 
+	/**
+	 * Describes a user. Concurrent and recently succeeded describes of the same user are not repeated, see
+	 * {@link #setDescribeTtl(long)}.
+	 */
 	public void describeUser(String userId, AckListener ackListener) {
+		AckListener flight = beginDescribe("user:" + userId, ackListener);
+		if (flight == null) return;
+
 		DescribeUser a = new DescribeUser();
 		a.setUserId(userId);
-		a.setAckListener(ackListener);
+		a.setAckListener(flight);
 		transport.enqueue(a);
 	}
 
+	/**
+	 * Joins a describe that is in flight or starts a new one
+	 *
+	 * @return an AckListener for the new describe action, or null if no action should be sent
+	 */
+	AckListener beginDescribe(String key, AckListener ackListener) {
+		return describeFlights.begin(key, ackListener);
+	}
+
+	public long getDescribeTtl() {
+		return describeFlights.getTtl();
+	}
+
+	/**
+	 * Sets how long a succeeded describe_user, describe_realm or describe_channel satisfies repeated describes
+	 * of the same id. Listeners of such describes are acknowledged immediately with the earlier response.
+	 *
+	 * @param ttl Milliseconds, or zero to only merge describes that are in flight at the same time
+	 */
+	public void setDescribeTtl(long ttl) {
+		describeFlights.setTtl(ttl);
+	}
+
 	public boolean sendTextMessage(String channelId, String text) {
 
 		NinchatTextMessage m = new NinchatTextMessage();
@@ -319,6 +646,13 @@ public class Session {
 		return true; // TODO: Really?
 	}
 
+	/**
+	 * Starts the session. If the transport has a {@link com.ninchat.client.transport.SessionStateStore} with a saved
+	 * session and a snapshot of the same user has been loaded with {@link #loadSnapshot(InputStream)}, the saved
+	 * session is resumed. Resuming does not import channels and dialogues, so without a snapshot a new session is
+	 * created instead. The snapshot should be saved together with the session state, e.g. when the application
+	 * exits.
+	 */
 	public void startSession() {
 		if (status != Status.VIRGIN) {
 			throw new IllegalStateException("Only virgin session can be started");
@@ -328,6 +662,17 @@ public class Session {
 			throw new IllegalStateException("Starting session but no sessionCreationMethod defined!");
 		}
 
+		SessionState state = transport.restoreSessionState();
+		if (state != null) {
+			if (snapshotLoaded && state.getUserId() != null && state.getUserId().equals(userId)) {
+				resumeStoredSession(state);
+				return;
+			}
+
+			logger.info("Not resuming the saved session without a snapshot of its model");
+			transport.discardSessionState();
+		}
+
 		CreateSession a = sessionCreationMethod.getAction();
 		a.setMessageTypes(acceptedMessageTypes);
 		transport.enqueue(a);
@@ -335,6 +680,131 @@ public class Session {
 		setStatus(Status.ESTABLISHING);
 	}
 
+	/**
+	 * Writes a binary snapshot of the model: realms, users, audience queues, channels and dialogues with the
+	 * latest messages of each. A new session can load it with {@link #loadSnapshot(InputStream)} to be usable
+	 * before it has been established.
+	 *
+	 * @param messagesPerConversation Number of the latest messages to save for each conversation
+	 */
+	public void saveSnapshot(OutputStream out, int messagesPerConversation) throws IOException {
+		new ModelSnapshot().write(this, new DataOutputStream(new BufferedOutputStream(out)), messagesPerConversation);
+	}
+
+	/**
+	 * Loads a snapshot written by {@link #saveSnapshot(OutputStream, int)} into a virgin session. Listeners are told
+	 * about the restored conversations with {@link SessionListener#onChannelsCreated(Session, List)} and
+	 * {@link SessionListener#onDialoguesCreated(Session, List)}.
+	 * <p>
+	 * When the session is established, it is reconciled with session_created: restored channels, dialogues and
+	 * audience queues that are not part of the session are destroyed and the rest are updated.
+	 */
+	public void loadSnapshot(InputStream in) throws IOException {
+		if (status != Status.VIRGIN) {
+			throw new IllegalStateException("Snapshot can only be loaded into a virgin session");
+		}
+
+		List<Channel> createdChannels = new ArrayList<Channel>();
+		List<Dialogue> createdDialogues = new ArrayList<Dialogue>();
+
+		new ModelSnapshot().read(this, new DataInputStream(new BufferedInputStream(in)), createdChannels, createdDialogues);
+
+		if (!createdChannels.isEmpty()) {
+			List<Channel> channels = Collections.unmodifiableList(createdChannels);
+			for (SessionListener sessionListener : sessionListeners) {
+				sessionListener.onChannelsCreated(this, channels);
+			}
+		}
+
+		if (!createdDialogues.isEmpty()) {
+			List<Dialogue> dialogues = Collections.unmodifiableList(createdDialogues);
+			for (SessionListener sessionListener : sessionListeners) {
+				sessionListener.onDialoguesCreated(this, dialogues);
+			}
+		}
+	}
+
+	void realmRestored(Realm realm) {
+		conversationIndex.update(realm);
+		audienceQueueIndex.update(realm);
+	}
+
+	void audienceQueueRestored(AudienceQueue audienceQueue) {
+		audienceQueueIndex.update(audienceQueue);
+	}
+
+	void snapshotRestored(String sessionUserId) {
+		snapshotLoaded = true;
+
+		if (sessionUserId != null) {
+			userId = sessionUserId;
+
+			User user = getOrCreateUser(sessionUserId);
+			if (user != sessionUser) {
+				retainUser(user);
+			}
+			sessionUser = user;
+
+			if (user.getName() != null) {
+				highlightTokens.add(user.getName().toLowerCase()); // TODO: Others?, Locale
+			}
+		}
+	}
+
+	/**
+	 * Resumes a session that was saved by another process. The transport sends resume_session when it connects
+	 * for the ping. A pong means that the session is still alive. If it is not, the session is started again with
+	 * the session creation method.
+	 */
+	private void resumeStoredSession(SessionState state) {
+		sessionId = state.getSessionId();
+		userId = state.getUserId();
+		resumingStoredSession = true;
+
+		setStatus(Status.ESTABLISHING);
+
+		transport.ping();
+	}
+
+	private void storedSessionResumed() {
+		resumingStoredSession = false;
+
+		if (userId != null) {
+			User user = getOrCreateUser(userId);
+			if (user != sessionUser) {
+				retainUser(user);
+			}
+			sessionUser = user;
+
+			describeUser(userId, new SimpleAckListener() {
+				@Override
+				public void onReady(boolean success) {
+					String name = sessionUser != null ? sessionUser.getName() : null;
+					if (success && name != null) {
+						highlightTokens.add(name.toLowerCase()); // TODO: Others?, Locale
+					}
+				}
+			});
+		}
+
+		setStatus(Status.ESTABLISHED);
+
+		// Same session and user as the saved state, so actions left in the log by the earlier process are replayed
+		transport.replayActionLog();
+
+		for (SessionListener sessionListener : sessionListeners) {
+			sessionListener.onSessionEstablished(Session.this);
+		}
+
+		for (SessionListener sessionListener : sessionListeners) {
+			sessionListener.onSessionImported(Session.this);
+		}
+
+		loadAttributes();
+
+		autoEstablish = true;
+	}
+
 	/**
 	 * Initiates graceful session shutdown.
 	 */
@@ -375,19 +845,32 @@ public class Session {
 		Status statusWas = status;
 
 		realms.clear();
-		users.clear();
+		userCache.clear();
+		describeFlights.clear();
+
+		AttributeLoader loader = attributeLoader;
+		attributeLoader = null;
+		if (loader != null) {
+			loader.cancel();
+		}
 
 		for (Channel channel : channels.values()) {
-			channel.unregisterSessionListener();
+			conversationRemoved(channel);
 		}
 		channels.clear();
+		membershipIndex.clear();
 
 		for (Dialogue dialogue : dialogues.values()) {
-			dialogue.unregisterSessionListener();
+			conversationRemoved(dialogue);
 		}
 		dialogues.clear();
 
+		conversationIndex.clear();
+		conversationNames.clear();
+		activityCounters.clear();
+
 		highlightTokens.clear();
+		snapshotLoaded = false;
 
 		setStatus(Status.VIRGIN);
 
@@ -400,6 +883,15 @@ public class Session {
 			}
 		}
 
+		ExecutorService executor = modelExecutor;
+		if (executor != null) {
+			// The model thread finishes the cancellations that were dispatched above and exits. A new session
+			// starts a new one.
+			modelExecutor = createModelExecutor();
+			transport.setListenerExecutor(modelExecutor);
+			executor.shutdown();
+		}
+
 		sessionCreationMethod = null;
 		attributesLoaded = false;
 
@@ -467,7 +959,7 @@ public class Session {
 			}
 
 			String lastSeen = target.getLastSeenMessageId();
-			if (lastSeen == null || lastSeen.compareTo(event.getMessageId()) < 0) {
+			if (lastSeen == null || IdCodec.compareMessageIds(lastSeen, event.getMessageId()) < 0) {
 				target.setActivityStatus(Conversation.ActivityStatus.NONE);
 			}
 		}
@@ -533,8 +1025,7 @@ public class Session {
 
 				if (remaining <= 0) {
 					if (!currentHistoryBundle.isEmpty()) {
-						Collections.sort(currentHistoryBundle);
-						target.addMessages(currentHistoryBundle);
+						target.addMessages(toSortedRun(currentHistoryBundle));
 					}
 
 					openMessageBundles.remove(target);
@@ -543,6 +1034,33 @@ public class Session {
 		}
 	}
 
+	/**
+	 * History is received either newest or oldest first. Turns the bundle into an ascending run without sorting
+	 * when possible.
+	 */
+	private static List<Message> toSortedRun(List<Message> bundle) {
+		int ascending = 0;
+		int descending = 0;
+
+		for (int i = 1; i < bundle.size(); i++) {
+			int c = bundle.get(i - 1).compareTo(bundle.get(i));
+			if (c < 0) ascending++;
+			else if (c > 0) descending++;
+		}
+
+		if (descending == 0) {
+			return bundle;
+
+		} else if (ascending == 0) {
+			Collections.reverse(bundle);
+
+		} else {
+			Collections.sort(bundle);
+		}
+
+		return bundle;
+	}
+
 	private class MessageUpdatedListener implements TransportEventListener<MessageUpdated> {
 		@Override
 		public void onEvent(MessageUpdated messageUpdated) {
@@ -563,55 +1081,176 @@ public class Session {
 			userId = event.getUserId();
 			userAuth = event.getUserAuth();
 
-			sessionUser = getOrCreateUser(event.getUserId());
+			User user = getOrCreateUser(event.getUserId());
+			if (user != sessionUser) {
+				// The session user is never evicted
+				retainUser(user);
+			}
+			sessionUser = user;
 			sessionUser.importUserAttrs(event.getUserAttrs());
+			reposition(sessionUser);
 
 			highlightTokens.add(sessionUser.getName().toLowerCase()); // TODO: Others?, Locale
 
-			if (event.getUserRealms() != null) {
-				for (Map.Entry<String, RealmAttrs> entry : event.getUserRealms().entrySet()) {
-					Realm realm = getOrCreateRealm(entry.getKey());
-					realm.importRealmAttrs(entry.getValue());
-					userRealms.add(realm);
+			SessionCreatedStream stream = transport.takeSessionCreatedStream(event);
+
+			// Whatever was restored from a snapshot but is not part of the new session is removed afterwards
+			Set<Object> stale = null;
+			if (snapshotLoaded) {
+				snapshotLoaded = false;
+				stale = new HashSet<Object>();
+				stale.addAll(channels.values());
+				stale.addAll(dialogues.values());
+				synchronized (audienceQueues) {
+					stale.addAll(audienceQueues.values());
 				}
 			}
 
-			if (event.getUserChannels() != null) {
-				for (Map.Entry<String, UserChannels.Parameters> entry : event.getUserChannels().entrySet()) {
-					String channelId = entry.getKey();
-					UserChannels.Parameters parameters = entry.getValue();
+			if (stream != null) {
+				// Realms and queues are few. Conversations are imported after the session has been established.
+				importUserRealms(stream.realms());
+				importUserQueues(stream.queues(), stale);
 
-					Realm realm = null;
-					String realmId = parameters.getRealmId();
-					if (realmId != null) {
-						realm = getOrCreateRealm(realmId);
-					}
+				established();
 
-					Channel channel = getOrCreateChannel(channelId, realm);
+				importUserChannels(stream.channels(), true, stale);
+				importUserDialogues(stream.dialogues(), true, stale);
 
-					if (parameters.getChannelAttrs() != null) {
-						channel.importChannelAttrs(parameters.getChannelAttrs());
-					}
+				if (stale != null) removeStale(stale);
 
-					// TODO: channel_status (?)
+			} else {
+				if (event.getUserRealms() != null) {
+					importUserRealms(event.getUserRealms().entrySet().iterator());
+				}
+
+				if (event.getUserChannels() != null) {
+					importUserChannels(event.getUserChannels().entrySet().iterator(), false, stale);
+				}
 
-					logger.info("Created channel: " + channel.getId() + " / " + channel.getName()); // ??
+				// Queues before dialogues, which are named after their queues
+				if (event.getUserQueues() != null) {
+					importUserQueues(event.getUserQueues().entrySet().iterator(), stale);
 				}
+
+				if (event.getUserDialogues() != null) {
+					importUserDialogues(event.getUserDialogues().entrySet().iterator(), false, stale);
+				}
+
+				if (stale != null) removeStale(stale);
+
+				// TODO: user_identities
+				// TODO: user_account
+				// TODO: user_settings
+
+				established();
+			}
+
+			for (SessionListener sessionListener : sessionListeners) {
+				sessionListener.onSessionImported(Session.this);
+			}
+
+			loadAttributes();
+
+			autoEstablish = true;
+		}
+
+		private void established() {
+			setStatus(Status.ESTABLISHED);
+
+			transport.setSessionUserId(userId);
+			transport.setSessionId(sessionId); // For resume_session
+
+			MessageArchive archive = messageArchive;
+			if (archive != null) {
+				// Messages may have been missed between the sessions
+				archive.breakRuns();
 			}
 
-			if (event.getUserDialogues() != null) {
-				for (Map.Entry<String, UserDialogues.Parameters> entry : event.getUserDialogues().entrySet()) {
-					String peerId = entry.getKey();
-					UserDialogues.Parameters parameters = entry.getValue();
+			// Actions left in the log by another session are discarded
+			transport.replayActionLog();
+
+			for (SessionListener sessionListener : sessionListeners) {
+				sessionListener.onSessionEstablished(Session.this);
+			}
+		}
+
+		private void importUserRealms(Iterator<Map.Entry<String, RealmAttrs>> entries) {
+			while (entries.hasNext()) {
+				Map.Entry<String, RealmAttrs> entry = entries.next();
+				Realm realm = getOrCreateRealm(entry.getKey());
+				realm.importRealmAttrs(entry.getValue());
+				conversationIndex.update(realm);
+				audienceQueueIndex.update(realm);
+				userRealms.add(realm);
+			}
+		}
+
+		/**
+		 * @param notify Whether listeners are notified of the created channels in batches
+		 */
+		private void importUserChannels(Iterator<Map.Entry<String, UserChannels.Parameters>> entries, boolean notify,
+				Set<Object> stale) {
+			List<Channel> batch = new ArrayList<Channel>();
+
+			while (entries.hasNext()) {
+				Map.Entry<String, UserChannels.Parameters> entry = entries.next();
+				String channelId = entry.getKey();
+				UserChannels.Parameters parameters = entry.getValue();
+
+				Realm realm = null;
+				String realmId = parameters.getRealmId();
+				if (realmId != null) {
+					realm = getOrCreateRealm(realmId);
+				}
+
+				Channel channel = getOrCreateChannel(channelId, realm);
+				boolean restored = stale != null && stale.remove(channel);
+				if (restored) {
+					channel.setRealm(realm);
+				}
+
+				if (parameters.getChannelAttrs() != null) {
+					channel.importChannelAttrs(parameters.getChannelAttrs());
+				}
+
+				// TODO: channel_status (?)
+
+				logger.info("Created channel: " + channel.getId() + " / " + channel.getName()); // ??
 
-					if ("hidden".equals(parameters.getDialogueStatus())) {
-						// Don't track hidden dialogues
-						continue;
+				if (notify && !restored) batch.add(channel); // Restored channels have been reported already
+
+				if (notify && !batch.isEmpty() && (batch.size() >= IMPORT_BATCH_SIZE || !entries.hasNext())) {
+					List<Channel> channels = Collections.unmodifiableList(batch);
+					for (SessionListener sessionListener : sessionListeners) {
+						sessionListener.onChannelsCreated(Session.this, channels);
 					}
+					batch = new ArrayList<Channel>();
+				}
+			}
+		}
+
+		/**
+		 * @param notify Whether listeners are notified of the created dialogues in batches
+		 */
+		private void importUserDialogues(Iterator<Map.Entry<String, UserDialogues.Parameters>> entries, boolean notify,
+				Set<Object> stale) {
+			List<Dialogue> batch = new ArrayList<Dialogue>();
 
+			while (entries.hasNext()) {
+				Map.Entry<String, UserDialogues.Parameters> entry = entries.next();
+				String peerId = entry.getKey();
+				UserDialogues.Parameters parameters = entry.getValue();
+
+				if (!"hidden".equals(parameters.getDialogueStatus())) { // Don't track hidden dialogues
 					Dialogue dialogue = getOrCreateDialogue(peerId);
 					logger.info("Created dialogue: " + dialogue.getId() + " / " + dialogue.getName()); // ??
 
+					boolean restored = stale != null && stale.remove(dialogue);
+					if (restored) {
+						// Restored from a snapshot. The status of the session is authoritative.
+						dialogue.setActivityStatus(Conversation.ActivityStatus.NONE);
+					}
+
 					if (parameters.getDialogueMembers() != null) {
 						DialogueMembers.Parameters memberParams = parameters.getDialogueMembers().get(entry.getKey());
 						if (memberParams != null) {
@@ -629,36 +1268,53 @@ public class Session {
 					if (parameters.getAudienceMetadata() != null) {
 						dialogue.setAudienceMetadata(parameters.getAudienceMetadata().getJsonObject());
 					}
+
+					if (notify && !restored) batch.add(dialogue);
 				}
-			}
 
-			if (event.getUserQueues() != null) {
-				for (Map.Entry<String, UserQueues.Parameters> e : event.getUserQueues().entrySet()) {
-					AudienceQueue audienceQueue = getOrCreateAudienceQueue(e.getKey());
-					audienceQueue.importAttrs(e.getValue().getQueueAttrs());
-					if (e.getValue().getRealmId() != null) {
-						audienceQueue.setRealm(getOrCreateRealm(e.getValue().getRealmId()));
+				if (notify && !batch.isEmpty() && (batch.size() >= IMPORT_BATCH_SIZE || !entries.hasNext())) {
+					List<Dialogue> dialogues = Collections.unmodifiableList(batch);
+					for (SessionListener sessionListener : sessionListeners) {
+						sessionListener.onDialoguesCreated(Session.this, dialogues);
 					}
-
-					logger.info("Created AudienceQueue: " + audienceQueue.getId() + " / " + audienceQueue.getName());
+					batch = new ArrayList<Dialogue>();
 				}
 			}
+		}
 
-			// TODO: user_identities
-			// TODO: user_account
-			// TODO: user_settings
+		/**
+		 * Removes conversations and queues that were restored from a snapshot but do not belong to the session
+		 */
+		private void removeStale(Set<Object> stale) {
+			for (Object o : stale) {
+				if (o instanceof Channel) {
+					removeChannel(((Channel)o).getId());
+				} else if (o instanceof Dialogue) {
+					removeDialogue(((Dialogue)o).getId());
+				} else if (o instanceof AudienceQueue) {
+					removeAudienceQueue(((AudienceQueue)o).getId());
+				}
+			}
+		}
 
-			setStatus(Status.ESTABLISHED);
+		private void importUserQueues(Iterator<Map.Entry<String, UserQueues.Parameters>> entries, Set<Object> stale) {
+			while (entries.hasNext()) {
+				Map.Entry<String, UserQueues.Parameters> e = entries.next();
+				AudienceQueue audienceQueue = getOrCreateAudienceQueue(e.getKey());
+				if (stale != null) stale.remove(audienceQueue);
+				String oldName = audienceQueue.getName();
+				audienceQueue.importAttrs(e.getValue().getQueueAttrs());
+				if (e.getValue().getRealmId() != null) {
+					audienceQueue.setRealm(getOrCreateRealm(e.getValue().getRealmId()));
+				}
+				audienceQueueIndex.update(audienceQueue);
 
-			transport.setSessionId(sessionId); // For resume_session
+				if (!audienceQueue.getName().equals(oldName)) {
+					reposition(audienceQueue); // Dialogues restored from a snapshot
+				}
 
-			for (SessionListener sessionListener : sessionListeners) {
-				sessionListener.onSessionEstablished(Session.this);
+				logger.info("Created AudienceQueue: " + audienceQueue.getId() + " / " + audienceQueue.getName());
 			}
-
-			loadAttributes();
-
-			autoEstablish = true;
 		}
 	}
 
@@ -679,7 +1335,7 @@ public class Session {
 			}
 
 			// If conversation has messages, it has probably been described lazily. Don't mess up activity status.
-			if (channel.getMessages().isEmpty()) {
+			if (channel.messages.isEmpty()) {
 				if ("highlight".equals(event.getChannelStatus())) {
 					channel.setActivityStatus(Conversation.ActivityStatus.HIGHLIGHT);
 					// Enhance UX and preload history for highlighted channels
@@ -692,8 +1348,7 @@ public class Session {
 
 			// TODO: realm_id
 
-			if (event.getChannelMembers() != null) {
-				channel.importChannelMembers(event.getChannelMembers());
+			if (event.getChannelMembers() != null && channel.importChannelMembers(event.getChannelMembers())) {
 				for (ChannelListener channelListener : channel.getChannelListeners()) {
 					channelListener.onMembersUpdated(channel);
 				}
@@ -706,11 +1361,16 @@ public class Session {
 		public void onEvent(UserFound event) {
 			User user = getOrCreateUser(event.getUserId());
 			user.importUserAttrs(event.getUserAttrs());
+			reposition(user);
 
 			for (SessionListener sessionListener : sessionListeners) {
 				sessionListener.onUserUpdated(Session.this, user); // TODO: Catch
 			}
 
+			for (Channel channel : membershipIndex.getChannels(user.getUserId())) {
+				channel.onUserUpdated(user);
+			}
+
 		}
 	}
 
@@ -719,6 +1379,8 @@ public class Session {
 		public void onEvent(RealmFound event) {
 			Realm realm = getOrCreateRealm(event.getRealmId());
 			realm.importRealmAttrs(event.getRealmAttrs());
+			conversationIndex.update(realm);
+			audienceQueueIndex.update(realm);
 		}
 	}
 
@@ -729,11 +1391,16 @@ public class Session {
 
 			User user = getOrCreateUser(event.getUserId());
 			user.importUserAttrs(event.getUserAttrs());
+			reposition(user);
 
 			for (SessionListener sessionListener : sessionListeners) {
 				sessionListener.onUserUpdated(Session.this, user); // TODO: Catch
 			}
 
+			for (Channel channel : membershipIndex.getChannels(user.getUserId())) {
+				channel.onUserUpdated(user);
+			}
+
 			// TODO: user_settings
 			// TODO: user_account
 		}
@@ -745,7 +1412,7 @@ public class Session {
 
 			Channel channel = channels.get(event.getChannelId());
 			if (channel != null) {
-				Member member = channel.getMembers().get(event.getUserId());
+				Member member = channel.members.get(event.getUserId());
 				if (member != null) {
 					member.importMemberAttrs(event.getMemberAttrs());
 					channel.updateMember(member);
@@ -763,10 +1430,11 @@ public class Session {
 
 			User user = getOrCreateUser(event.getUserId());
 			user.importUserAttrs(event.getUserAttrs());
+			reposition(user);
 
 			Channel channel = channels.get(event.getChannelId());
 			if (channel != null) {
-				Member member = channel.getMembers().get(user.getUserId());
+				Member member = channel.members.get(user.getUserId());
 				if (member == null) {
 					member = new Member(user);
 					member.importMemberAttrs(event.getMemberAttrs());
@@ -822,19 +1490,53 @@ public class Session {
 	private class ChannelPartedListener implements TransportEventListener<ChannelParted> {
 		@Override
 		public void onEvent(ChannelParted event) {
-			Channel channel = channels.get(event.getChannelId());
+			if (!removeChannel(event.getChannelId())) {
+				logger.warning("ChannelParted for unknown channel: " + event.getChannelId());
+			}
+		}
+	}
 
-			if (channel != null) {
-				channels.remove(event.getChannelId());
+	/**
+	 * @return false if the channel was not known
+	 */
+	private boolean removeChannel(String channelId) {
+		Channel channel = channels.remove(channelId);
+		if (channel == null) return false;
 
-				for (SessionListener sessionListener : sessionListeners) {
-					sessionListener.onChannelDestroyed(Session.this, channel);
-				}
+		synchronized (channel.members) {
+			membershipIndex.removeChannel(channel, channel.members.keySet());
+			channel.memberMap().releaseUsers();
+		}
+		conversationIndex.remove(channel);
+		conversationNames.remove(channel);
+		activityCounters.remove(channel);
+		conversationRemoved(channel);
 
-			} else {
-				logger.warning("ChannelParted for unknown channel: " + event.getChannelId());
+		for (SessionListener sessionListener : sessionListeners) {
+			sessionListener.onChannelDestroyed(Session.this, channel);
+		}
+		return true;
+	}
+
+	private void conversationRemoved(Conversation conversation) {
+		messageStore.onRemoved(conversation);
+
+		synchronized (conversation.messages) {
+			if (conversation.messages instanceof CompactMessageArray) {
+				// Releases the entries of the session's sender table
+				((CompactMessageArray)conversation.messages).detachSenders();
 			}
 		}
+
+		MessageSearchIndex searchIndex = messageSearchIndex;
+		if (searchIndex != null) {
+			searchIndex.remove(conversation);
+		}
+
+		MessageArchive archive = messageArchive;
+		if (archive != null) {
+			archive.release(conversation);
+		}
 	}
 
 	private class HistoryDiscardedListener implements TransportEventListener<HistoryDiscarded> {
@@ -848,6 +1550,17 @@ public class Session {
 				Dialogue dialogue = dialogues.remove(event.getUserId());
 
 				if (dialogue != null) {
+					conversationIndex.remove(dialogue);
+					conversationNames.remove(dialogue);
+					activityCounters.remove(dialogue);
+					dialogue.releasePeer();
+					conversationRemoved(dialogue);
+
+					MessageArchive archive = messageArchive;
+					if (archive != null) {
+						archive.delete(dialogue);
+					}
+
 					for (SessionListener sessionListener : sessionListeners) {
 						sessionListener.onDialogueDestroyed(Session.this, dialogue);
 					}
@@ -867,8 +1580,14 @@ public class Session {
 			AudienceQueue audienceQueue = getOrCreateAudienceQueue(event.getQueueId());
 
 			int oldLength = audienceQueue.getLength();
+			String oldName = audienceQueue.getName();
 
 			audienceQueue.importAttrs(event.getQueueAttrs());
+			audienceQueueIndex.update(audienceQueue);
+
+			if (!audienceQueue.getName().equals(oldName)) {
+				reposition(audienceQueue);
+			}
 
 			int difference = audienceQueue.getLength() - oldLength;
 
@@ -931,11 +1650,17 @@ public class Session {
 		@Override
 		public void onEvent(QueueJoined event) {
 			AudienceQueue audienceQueue = getOrCreateAudienceQueue(event.getQueueId());
+			String oldName = audienceQueue.getName();
 			audienceQueue.importAttrs(event.getQueueAttrs());
 
 			if (event.getRealmId() != null) {
 				audienceQueue.setRealm(getOrCreateRealm(event.getRealmId()));
 			}
+			audienceQueueIndex.update(audienceQueue);
+
+			if (!audienceQueue.getName().equals(oldName)) {
+				reposition(audienceQueue);
+			}
 
 			for (SessionListener sessionListener : sessionListeners) {
 				sessionListener.onAudienceQueueCreated(Session.this, audienceQueue);
@@ -946,15 +1671,33 @@ public class Session {
 	private class QueuePartedListener implements TransportEventListener<QueueParted> {
 		@Override
 		public void onEvent(QueueParted event) {
-			AudienceQueue audienceQueue = audienceQueues.remove(event.getQueueId());
+			removeAudienceQueue(event.getQueueId());
 
-			if (audienceQueue != null) {
-				for (SessionListener sessionListener : sessionListeners) {
-					sessionListener.onAudienceQueueDestroyed(Session.this, audienceQueue);
-				}
+			// TODO: Iterate dialogues and remove those initiated by the audience queue
+		}
+	}
+
+	private void removeAudienceQueue(String queueId) {
+		AudienceQueue audienceQueue;
+		synchronized (audienceQueues) {
+			audienceQueue = audienceQueues.remove(queueId);
+		}
+
+		if (audienceQueue != null) {
+			audienceQueueIndex.remove(audienceQueue);
+
+			for (SessionListener sessionListener : sessionListeners) {
+				sessionListener.onAudienceQueueDestroyed(Session.this, audienceQueue);
 			}
+		}
+	}
 
-			// TODO: Iterate dialogues and remove those initiated by the audience queue
+	private class PongListener implements TransportEventListener<Pong> {
+		@Override
+		public void onEvent(Pong event) {
+			if (resumingStoredSession && status == Status.ESTABLISHING) {
+				storedSessionResumed();
+			}
 		}
 	}
 
@@ -991,16 +1734,33 @@ public class Session {
 
 		@Override
 		public void onInvalidSession(AbstractTransport transport) {
+			if (isSingleWriter() && Thread.currentThread() != modelThread) {
+				// Let pending events be processed first
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						restartInvalidSession();
+					}
+				});
+			} else {
+				restartInvalidSession();
+			}
+		}
+
+		private void restartInvalidSession() {
 			if (logger.isLoggable(Level.INFO)) logger.info("onInvalidSession! Terminating session.");
 
 			SessionCreationMethod method = sessionCreationMethod;
+			boolean resuming = resumingStoredSession;
+			resumingStoredSession = false;
 
 			terminate(); // clears session creation method
 
 			autoEstablish = false;
 			// If start session is successful, autoEstablish will be set to true
 			// It will remain false if an error occurs
-			if (method instanceof UserIdSessionCreationMethod) {
+			// A stored session that could not be resumed falls back to the method it was started with
+			if (method instanceof UserIdSessionCreationMethod || (resuming && method != null)) {
 				sessionCreationMethod = method;
 
 				// TODO: Handle invalid session creation method...
@@ -1076,28 +1836,107 @@ public class Session {
 	}
 
 	public Map<String, Channel> getChannels() {
-		return channels;
+		return isSingleWriter() ? channels.snapshot() : channels;
 	}
 
 	public Map<String, Dialogue> getDialogues() {
-		return dialogues;
+		return isSingleWriter() ? dialogues.snapshot() : dialogues;
 	}
 
 	public Conversation findConversation(Conversation.WrappedId wrappedId) {
 		if (wrappedId instanceof Channel.WrappedId) {
-			return channels.get(wrappedId.getId());
+			return getChannels().get(wrappedId.getId());
 
 		} else if (wrappedId instanceof Dialogue.WrappedId) {
-			return dialogues.get(wrappedId.getId());
+			return getDialogues().get(wrappedId.getId());
 		}
 
 		return null;
 	}
 
+	/**
+	 * Returns a live set of highlight tokens. Changes take effect on the next received message.
+	 */
 	public Set<String> getHighlightTokens() {
 		return highlightTokens;
 	}
 
+	HighlightMatcher getHighlightMatcher() {
+		HighlightMatcher matcher = highlightMatcher;
+		if (matcher == null) {
+			synchronized (highlightTokens) {
+				matcher = highlightMatcher;
+				if (matcher == null) {
+					matcher = HighlightMatcher.compile(highlightTokens);
+					highlightMatcher = matcher;
+				}
+			}
+		}
+		return matcher;
+	}
+
+	/**
+	 * Discards the compiled matcher whenever the tokens change
+	 */
+	private class HighlightTokenSet extends AbstractSet<String> {
+		private final Set<String> tokens = new CopyOnWriteArraySet<String>();
+
+		@Override
+		public Iterator<String> iterator() {
+			return tokens.iterator();
+		}
+
+		@Override
+		public int size() {
+			return tokens.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return tokens.contains(o);
+		}
+
+		@Override
+		public boolean add(String token) {
+			return changed(tokens.add(token));
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return changed(tokens.remove(o));
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends String> c) {
+			return changed(tokens.addAll(c));
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			return changed(tokens.removeAll(c));
+		}
+
+		@Override
+		public boolean retainAll(Collection<?> c) {
+			return changed(tokens.retainAll(c));
+		}
+
+		@Override
+		public void clear() {
+			tokens.clear();
+			changed(true);
+		}
+
+		private boolean changed(boolean changed) {
+			if (changed) {
+				synchronized (this) {
+					highlightMatcher = null;
+				}
+			}
+			return changed;
+		}
+	}
+
 	/**
 	 * Depending on conversation type:
 	 * <ul>
@@ -1149,103 +1988,167 @@ public class Session {
 	 * Removes dialogue and calls session listeners. This method is required because dialogues are stateless. User
 	 * doesn't <strong>establish</strong> a dialogue with another user - they just send a message. Use this for
 	 * closing a dialogue which has no sent or received messages.
+	 * <p>
+	 * In single-writer mode the dialogue is removed on the model thread.
 	 *
 	 * @param id
 	 */
-	public void removeDialogue(String id) {
+	public void removeDialogue(final String id) {
+		if (isSingleWriter() && Thread.currentThread() != modelThread) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					removeDialogue(id);
+				}
+			});
+			return;
+		}
+
 		Dialogue dialogue = dialogues.remove(id);
 
 		if (dialogue == null) return; // No op
 
+		conversationIndex.remove(dialogue);
+		conversationNames.remove(dialogue);
+		activityCounters.remove(dialogue);
+		dialogue.releasePeer();
+		conversationRemoved(dialogue);
+
 		for (SessionListener sessionListener : sessionListeners) {
 			sessionListener.onDialogueDestroyed(Session.this, dialogue);
 		}
 	}
 
 	/**
-	 * Returns an immutable list that contains channels and dialogues in sorted order.
-	 * <p>
-	 * <strong>Note: </strong> Currently this method creates a new list on every method call and it is highly
-	 * discouraged to call this multiple times inside a loop.
+	 * Returns an immutable list that contains channels and dialogues in sorted order. The order is maintained as
+	 * conversations are created, destroyed and renamed, so this is cheap to call. The returned list is a snapshot;
+	 * call again to see later changes.
 	 *
 	 * @return Sorted conversations
 	 */
 	public List<Conversation> getConversations() {
-		ArrayList<Conversation> conversations = new ArrayList<Conversation>();
-		conversations.addAll(channels.values());
-		conversations.addAll(dialogues.values());
-		Collections.sort(conversations, new Comparator<Conversation>() {
-			@Override
-			public int compare(Conversation a, Conversation b) {
-				if (a instanceof Dialogue && b instanceof Dialogue) {
-					return a.getName().compareToIgnoreCase(b.getName());
+		return conversationIndex.snapshot();
+	}
 
-				} else if (a instanceof Channel && b instanceof Channel) {
-					Channel ac = (Channel) a;
-					Channel bc = (Channel) b;
+	/**
+	 * Finds channels and dialogues by name, ignoring case. A dialogue is named after its peer and the audience
+	 * queue it was started from. Conversations whose name starts with the prefix come first, followed by those
+	 * with a later word that starts with it.
+	 *
+	 * @param prefix Start of the name or of a word in it
+	 * @param limit Maximum number of results
+	 * @return matching conversations
+	 */
+	public List<Conversation> findConversations(String prefix, int limit) {
+		return conversationNames.find(prefix, limit);
+	}
 
-					if (ac.getRealm() == bc.getRealm()) {
-						return ac.getName().compareToIgnoreCase(bc.getName());
+	/**
+	 * Finds cached users by name, ignoring case. See {@link #findConversations(String, int)}.
+	 *
+	 * @param prefix Start of the name or of a word in it
+	 * @param limit Maximum number of results
+	 * @return matching users
+	 */
+	public List<User> findUsers(String prefix, int limit) {
+		return userNames.find(prefix, limit);
+	}
 
-					} else if (ac.getRealm() == null) {
-						return -1;
+	public int getCompactMemberThreshold() {
+		return compactMemberThreshold;
+	}
 
-					} else if (bc.getRealm() == null) {
-						return 1;
+	/**
+	 * Sets the member count above which a channel keeps its members in a compact table. Members of such channels
+	 * are materialized on access, and users that are only known as their members are not added to
+	 * {@link #getUsers()}.
+	 *
+	 * @param compactMemberThreshold Member count, or Integer.MAX_VALUE to disable
+	 */
+	public void setCompactMemberThreshold(int compactMemberThreshold) {
+		this.compactMemberThreshold = compactMemberThreshold;
+	}
 
-					} else {
-						return ac.getRealm().getName().compareToIgnoreCase(bc.getRealm().getName());
-					}
+	MembershipIndex getMembershipIndex() {
+		return membershipIndex;
+	}
 
-				} else if (a instanceof Channel) {
-					return -1;
+	/**
+	 * Updates the position of the conversation in {@link #getConversations()} after its name or realm has changed
+	 */
+	void reposition(Conversation conversation) {
+		conversationIndex.update(conversation);
+		conversationNames.update(conversation, conversation.getName());
+	}
 
-				} else {
-					assert b instanceof Channel;
-					return 1;
+	/**
+	 * Updates the positions of the dialogues of the queue after the queue has been renamed
+	 */
+	void reposition(AudienceQueue audienceQueue) {
+		List<Dialogue> renamed = new ArrayList<Dialogue>();
+		synchronized (dialogues) {
+			for (Dialogue dialogue : dialogues.values()) {
+				if (dialogue.getAudienceQueue() == audienceQueue) {
+					renamed.add(dialogue);
 				}
 			}
-		});
+		}
 
-		return Collections.unmodifiableList(conversations);
+		for (Dialogue dialogue : renamed) {
+			reposition(dialogue);
+		}
 	}
 
-	public List<AudienceQueue> getAudienceQueues() {
-		ArrayList<AudienceQueue> sortedAudienceQueues = new ArrayList<AudienceQueue>(audienceQueues.values());
-
-		Collections.sort(sortedAudienceQueues, new Comparator<AudienceQueue>() {
-			@Override
-			public int compare(AudienceQueue ac, AudienceQueue bc) {
-				if (ac.getRealm() == bc.getRealm()) {
-					return ac.getName().compareToIgnoreCase(bc.getName());
-
-				} else if (ac.getRealm() == null) {
-					return -1;
+	/**
+	 * Updates the position of the dialogue with the user after the user has been renamed
+	 */
+	void reposition(User user) {
+		Dialogue dialogue;
+		synchronized (dialogues) {
+			dialogue = dialogues.get(user.getUserId());
+		}
 
-				} else if (bc.getRealm() == null) {
-					return 1;
+		if (dialogue != null) {
+			conversationIndex.update(dialogue);
+			conversationNames.update(dialogue, dialogue.getName());
+		}
 
-				} else {
-					return ac.getRealm().getName().compareToIgnoreCase(bc.getRealm().getName());
-				}
+		synchronized (users) {
+			// An evicted user must not be indexed again
+			if (users.get(user.getUserId()) == user) {
+				userNames.update(user, user.getName());
 			}
-		});
+		}
+	}
 
-		return Collections.unmodifiableList(sortedAudienceQueues);
+	/**
+	 * Returns an immutable list of audience queues sorted by realm and name. The order is maintained as queues are
+	 * created, updated and destroyed, so this is cheap to call.
+	 *
+	 * @return Sorted audience queues
+	 */
+	public List<AudienceQueue> getAudienceQueues() {
+		return audienceQueueIndex.snapshot();
 	}
 
+	/**
+	 * Returns the total length of all audience queues. Maintained as queues are updated.
+	 */
 	public int getTotalAudienceQueueLength() {
-		synchronized (audienceQueues) {
-			int length = 0;
-			for (AudienceQueue q : audienceQueues.values()) {
-				length += q.getLength();
-			}
-			return length;
-		}
+		return audienceQueueIndex.getTotalLength();
+	}
+
+	/**
+	 * Returns the total length of audience queues in a realm
+	 *
+	 * @param realm A realm or null for queues that don't belong to any realm
+	 */
+	public int getTotalAudienceQueueLength(Realm realm) {
+		return audienceQueueIndex.getTotalLength(realm);
 	}
 
 	public Map<String, Realm> getRealms() {
-		return realms;
+		return isSingleWriter() ? realms.snapshot() : realms;
 	}
 
 	public User getSessionUser() {
@@ -1264,57 +2167,80 @@ public class Session {
 		return attributesLoaded;
 	}
 
-	private class AttributesLoadedAckListener extends SimpleAckListener {
-		volatile int pending = 0;
+	public int getAttributeLoaderConcurrency() {
+		return attributeLoaderConcurrency;
+	}
 
-		@Override
-		public void onReady(boolean success) {
-			pending--;
-			if (pending == 0) {
-				attributesLoaded = true;
+	/**
+	 * Sets how many describes are kept in flight while attributes are loaded after the session has been
+	 * established
+	 */
+	public void setAttributeLoaderConcurrency(int attributeLoaderConcurrency) {
+		this.attributeLoaderConcurrency = attributeLoaderConcurrency;
+	}
 
-				for (SessionListener sessionListener : sessionListeners) {
-					sessionListener.onAttributesLoaded(Session.this);
-				}
-			}
+	/**
+	 * Loads the peer of the dialogue before other pending attributes. Call this when a dialogue is shown before
+	 * {@link SessionListener#onAttributesLoaded(Session)}. Has no effect if attributes are not being loaded.
+	 */
+	public void prioritizeAttributes(Dialogue dialogue) {
+		AttributeLoader loader = attributeLoader;
+		if (loader != null) {
+			loader.prioritize(dialogue);
 		}
+	}
 
-		public void addPending() {
-			pending++;
+	void attributesProgress(AttributeLoader loader, int loaded, int total) {
+		if (loader != attributeLoader) return;
+
+		for (SessionListener sessionListener : sessionListeners) {
+			sessionListener.onAttributesProgress(Session.this, loaded, total);
+		}
+	}
+
+	void attributesLoaded(AttributeLoader loader) {
+		if (loader != attributeLoader) return;
+
+		attributesLoaded = true;
+		attributeLoader = null;
+
+		for (SessionListener sessionListener : sessionListeners) {
+			sessionListener.onAttributesLoaded(Session.this);
 		}
 	}
 
 	/**
-	 * Load attributes and call onAttributesLoaded when all attributes have been received
+	 * Load attributes and call onAttributesLoaded when all attributes have been received. Realms are loaded
+	 * first, then peers of dialogues with activity, then the rest in the order of {@link #getConversations()}.
 	 */
 	private void loadAttributes() {
-		AttributesLoadedAckListener ack = new AttributesLoadedAckListener();
+		AttributeLoader loader = new AttributeLoader(this, attributeLoaderConcurrency);
 
-		boolean somethingToLoad = false;
-
-		for (Realm realm : realms.values()) {
-			if (!realm.isDescribed()) {
-				somethingToLoad = true;
-				ack.addPending();
-				describeRealm(realm.getId(), ack);
-				ack.addPending();
-				describeRealmQueues(realm.getId(), ack);
+		synchronized (realms) {
+			for (Realm realm : realms.values()) {
+				if (!realm.isDescribed()) {
+					loader.addRealm(realm);
+				}
 			}
 		}
 
-		for (Dialogue dialogue : dialogues.values()) {
-			if (!dialogue.getPeer().isLoaded()) {
-				somethingToLoad = true;
-				ack.addPending();
-				describeUser(dialogue.getPeer().getUserId(), ack);
+		for (Conversation conversation : getConversations()) {
+			if (conversation instanceof Dialogue) {
+				Dialogue dialogue = (Dialogue)conversation;
+				if (!dialogue.getPeer().isLoaded()) {
+					loader.addDialogue(dialogue, dialogue.getActivityStatus() != Conversation.ActivityStatus.NONE ?
+							AttributeLoader.PRIORITY_ACTIVE : AttributeLoader.PRIORITY_DEFAULT);
+				}
 			}
 		}
 
-		if (!somethingToLoad) {
-			for (SessionListener sessionListener : sessionListeners) {
-				sessionListener.onAttributesLoaded(Session.this);
-			}
+		AttributeLoader previous = attributeLoader;
+		attributeLoader = loader;
+		if (previous != null) {
+			previous.cancel();
 		}
+
+		loader.start();
 	}
 
 }
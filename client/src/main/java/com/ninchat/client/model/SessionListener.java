@@ -29,6 +29,8 @@ package com.ninchat.client.model;
 
 import com.ninchat.client.transport.events.Error;
 
+import java.util.List;
+
 /**
  * @author Kari Lavikka
  */
@@ -40,6 +42,31 @@ public abstract class SessionListener {
 	public void onDialogueDestroyed(Session session, Dialogue dialogue) { }
 
 	public void onSessionEstablished(Session session) { }
+
+	/**
+	 * Called after {@link #onSessionEstablished(Session)} when the channels, dialogues, realms and queues of the
+	 * new session have been imported. Without {@link Session#setStreamingImport(boolean)} they are imported before
+	 * the session is established, and this is called right after it.
+	 */
+	public void onSessionImported(Session session) { }
+
+	/**
+	 * Called for each batch of channels imported after the session has been established
+	 */
+	public void onChannelsCreated(Session session, List<Channel> channels) {
+		for (Channel channel : channels) {
+			onChannelCreated(session, channel);
+		}
+	}
+
+	/**
+	 * Called for each batch of dialogues imported after the session has been established
+	 */
+	public void onDialoguesCreated(Session session, List<Dialogue> dialogues) {
+		for (Dialogue dialogue : dialogues) {
+			onDialogueCreated(session, dialogue);
+		}
+	}
 	public void onSessionEnded(Session session) { } // TODO: Reason
 
 	public void onAudienceQueueCreated(Session session, AudienceQueue audienceQueue) { }
@@ -60,6 +87,14 @@ public abstract class SessionListener {
 	 */
 	public void onAttributesLoaded(Session session) { }
 
+	/**
+	 * Called after each describe while attributes are loaded after the session has been established
+	 *
+	 * @param loaded Number of completed describes
+	 * @param total Number of describes to complete before {@link #onAttributesLoaded(Session)}
+	 */
+	public void onAttributesProgress(Session session, int loaded, int total) { }
+
 	public void onUserUpdated(Session session, User user) { }
 
 	public void onError(Session session, Error error) { }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A HashMap that hands out immutable snapshots of itself. A snapshot is copied on the first request after a
+ * change and shared until the next change, so repeated reads cost nothing.</p>
+ *
+ * <p>Mutators and snapshot creation synchronize on the map itself, like the existing
+ * <code>synchronized (map)</code> blocks of the model. The views are read-only, so that every change goes through
+ * a mutator that discards the snapshot.</p>
+ */
+class SnapshotMap<K, V> extends HashMap<K, V> {
+	private volatile Map<K, V> snapshot;
+
+	@Override
+	public synchronized V put(K key, V value) {
+		snapshot = null;
+		return super.put(key, value);
+	}
+
+	@Override
+	public synchronized void putAll(Map<? extends K, ? extends V> m) {
+		snapshot = null;
+		super.putAll(m);
+	}
+
+	@Override
+	public synchronized V remove(Object key) {
+		snapshot = null;
+		return super.remove(key);
+	}
+
+	@Override
+	public synchronized void clear() {
+		snapshot = null;
+		super.clear();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return Collections.unmodifiableSet(super.keySet());
+	}
+
+	@Override
+	public Collection<V> values() {
+		return Collections.unmodifiableCollection(super.values());
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		final Set<Map.Entry<K, V>> entries = super.entrySet();
+
+		return new AbstractSet<Map.Entry<K, V>>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				final Iterator<Map.Entry<K, V>> i = entries.iterator();
+
+				return new Iterator<Map.Entry<K, V>>() {
+					@Override
+					public boolean hasNext() {
+						return i.hasNext();
+					}
+
+					@Override
+					public Map.Entry<K, V> next() {
+						return new SimpleImmutableEntry<K, V>(i.next());
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return entries.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return entries.contains(o);
+			}
+		};
+	}
+
+	/**
+	 * @return an immutable copy of the current contents
+	 */
+	Map<K, V> snapshot() {
+		Map<K, V> s = snapshot;
+		if (s != null) return s;
+
+		synchronized (this) {
+			if (snapshot == null) {
+				snapshot = Collections.unmodifiableMap(new HashMap<K, V>(this));
+			}
+			return snapshot;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.Arrays;
+
+/**
+ * A sorted set of Message objects backed by a growable array. See {@link AbstractMessageArray}.
+ */
+public class SortedMessageArray extends AbstractMessageArray {
+	private Message[] elements;
+
+	public SortedMessageArray() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public SortedMessageArray(int initialCapacity) {
+		elements = new Message[Math.max(initialCapacity, 1)];
+	}
+
+	@Override
+	protected int capacity() {
+		return elements.length;
+	}
+
+	@Override
+	protected void reallocate(int capacity, int from, int length) {
+		Message[] target = new Message[capacity];
+		System.arraycopy(elements, from, target, 0, length);
+		elements = target;
+	}
+
+	@Override
+	protected void move(int from, int to, int length) {
+		System.arraycopy(elements, from, elements, to, length);
+	}
+
+	@Override
+	protected void release(int from, int to) {
+		Arrays.fill(elements, from, to, null);
+	}
+
+	@Override
+	protected void store(int index, Message message) {
+		elements[index] = message;
+	}
+
+	@Override
+	protected Message load(int index) {
+		return elements[index];
+	}
+
+	@Override
+	protected int compareAt(int index, long key, String fallback) {
+		return elements[index].compareToId(key, fallback);
+	}
+}
@@ -58,6 +58,9 @@ public class User {
 	 */
 	private boolean deleted;
 
+	/** Number of members and dialogues that hold this user. Guarded by {@link UserCache}. */
+	int references;
+
 	private boolean imported = false;
 
 	public enum Presence {
@@ -71,11 +74,20 @@ public class User {
 		this.name = userId;
 	}
 
-	void importUserAttrs(UserAttrs attrs) {
+	/**
+	 * @return true if this is the first import or any attribute changed
+	 */
+	boolean importUserAttrs(UserAttrs attrs) {
 		assert attrs != null;
 
+		boolean changed = !imported;
 		imported = true;
 
+		boolean wasAdmin = admin, wasConnected = connected, wasGuest = guest, wasDeleted = deleted;
+		Long wasIdle = idle;
+		String wasName = name, wasRealName = realName;
+		URL wasIconURL = iconURL;
+
 		admin = attrs.getAdmin();
 		connected = attrs.getConnected();
 		guest = attrs.getGuest();
@@ -99,6 +111,15 @@ public class User {
 				logger.log(Level.FINER, "Malformed URL for user " + userId + ": " + e.getMessage());
 			}
 		}
+
+		// URL.equals() may resolve host names. Compare the strings instead.
+		return changed || admin != wasAdmin || connected != wasConnected || guest != wasGuest || deleted != wasDeleted ||
+				!equal(idle, wasIdle) || !equal(name, wasName) || !equal(realName, wasRealName) ||
+				!equal(iconURL != null ? iconURL.toString() : null, wasIconURL != null ? wasIconURL.toString() : null);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
 	}
 
 	/**
@@ -110,6 +131,10 @@ public class User {
 		return imported;
 	}
 
+	void setLoaded(boolean loaded) {
+		this.imported = loaded;
+	}
+
 	public String getUserId() {
 		return userId;
 	}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the users of a session. A user stays cached as long as it is referenced by a channel member, a dialogue
+ * or the session itself. Users that are not referenced are kept in least recently used order and evicted when
+ * there are more of them than the capacity allows. The ids of recently evicted users are remembered, so that their
+ * attributes can be described again when they are needed. Ids are packed into longs when possible, see
+ * {@link IdCodec#encodeShortId(String)}.
+ * <p>
+ * All methods synchronize on {@link #users}, like the existing <code>synchronized (users)</code> blocks of the
+ * session.
+ */
+final class UserCache {
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/** Ids of at least this many latest evictions are remembered */
+	static final int EVICTED_LIMIT = 20000;
+
+	final SnapshotMap<String, User> users = new SnapshotMap<String, User>();
+
+	/** Users without references, in access order */
+	private final LinkedHashMap<String, User> unreferenced = new LinkedHashMap<String, User>(16, 0.75f, true);
+
+	/** Ids of evicted users. Ids are not removed when the user is cached again. */
+	private final EvictedIds evicted = new EvictedIds(EVICTED_LIMIT);
+
+	private int capacity = DEFAULT_CAPACITY;
+
+	/** Evicted users are removed from the index */
+	private final NameIndex<User> names;
+
+	UserCache(NameIndex<User> names) {
+		this.names = names;
+	}
+
+	int getCapacity() {
+		synchronized (users) {
+			return capacity;
+		}
+	}
+
+	void setCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive!");
+		}
+
+		synchronized (users) {
+			this.capacity = capacity;
+			trim();
+		}
+	}
+
+	/**
+	 * @return the cached user or null. Refreshes the position of an unreferenced user in the eviction order.
+	 */
+	User get(String userId) {
+		synchronized (users) {
+			User user = users.get(userId);
+			if (user != null && user.references == 0) {
+				unreferenced.get(userId);
+			}
+			return user;
+		}
+	}
+
+	/**
+	 * Adds a new unreferenced user
+	 */
+	void add(User user) {
+		synchronized (users) {
+			String userId = user.getUserId();
+			users.put(userId, user);
+			if (user.references == 0) {
+				unreferenced.put(userId, user);
+			}
+			trim();
+		}
+	}
+
+	boolean isEvicted(String userId) {
+		synchronized (users) {
+			return evicted.contains(userId);
+		}
+	}
+
+	/**
+	 * Protects the user from eviction until a matching {@link #release(User)}
+	 */
+	void retain(User user) {
+		synchronized (users) {
+			String userId = user.getUserId();
+			if (user.references++ == 0) {
+				unreferenced.remove(userId);
+			}
+			if (users.get(userId) == null) {
+				// Retained through a reference that outlived the cache entry
+				users.put(userId, user);
+				names.update(user, user.getName());
+			}
+		}
+	}
+
+	void release(User user) {
+		synchronized (users) {
+			if (user.references == 0) return;
+
+			if (--user.references == 0) {
+				String userId = user.getUserId();
+				if (users.get(userId) == user) {
+					unreferenced.put(userId, user);
+					trim();
+				}
+			}
+		}
+	}
+
+	void clear() {
+		synchronized (users) {
+			for (User user : users.values()) {
+				user.references = 0;
+			}
+			users.clear();
+			unreferenced.clear();
+			evicted.clear();
+			names.clear();
+		}
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<String, User>> i = unreferenced.entrySet().iterator();
+		while (unreferenced.size() > capacity && i.hasNext()) {
+			Map.Entry<String, User> entry = i.next();
+			String userId = entry.getKey();
+			User user = entry.getValue();
+			i.remove();
+			users.remove(userId);
+			names.remove(user);
+			evicted.add(userId);
+		}
+	}
+
+	/**
+	 * Ids of the latest evictions in two generations. When the current generation is full, it replaces the
+	 * previous one, whose ids are forgotten.
+	 */
+	private static final class EvictedIds {
+		private final int limit;
+
+		private IdSet current = new IdSet();
+		private IdSet previous = new IdSet();
+
+		EvictedIds(int limit) {
+			this.limit = limit;
+		}
+
+		void add(String userId) {
+			if (current.size() >= limit) {
+				previous = current;
+				current = new IdSet();
+			}
+			current.add(userId);
+		}
+
+		boolean contains(String userId) {
+			return current.contains(userId) || previous.contains(userId);
+		}
+
+		void clear() {
+			current = new IdSet();
+			previous = new IdSet();
+		}
+	}
+
+	/**
+	 * Insert-only set of user ids. Packable ids are kept in an open addressing table of longs.
+	 */
+	private static final class IdSet {
+		/** Zero marks an empty slot. A packed id is never zero, because its length is at least one. */
+		private long[] keys = new long[64];
+		private int packed;
+		private final Set<String> others = new HashSet<String>();
+
+		void add(String userId) {
+			if (!isPackable(userId)) {
+				others.add(userId);
+				return;
+			}
+
+			if ((packed + 1) * 2 > keys.length) {
+				long[] old = keys;
+				keys = new long[old.length * 2];
+				packed = 0;
+				for (long key : old) {
+					if (key != 0) insert(key);
+				}
+			}
+			insert(IdCodec.encodeShortId(userId));
+		}
+
+		int size() {
+			return packed + others.size();
+		}
+
+		boolean contains(String userId) {
+			if (!isPackable(userId)) {
+				return others.contains(userId);
+			}
+
+			long key = IdCodec.encodeShortId(userId);
+			for (int i = slot(key); keys[i] != 0; i = (i + 1) & (keys.length - 1)) {
+				if (keys[i] == key) return true;
+			}
+			return false;
+		}
+
+		private void insert(long key) {
+			int i = slot(key);
+			for (; keys[i] != 0; i = (i + 1) & (keys.length - 1)) {
+				if (keys[i] == key) return;
+			}
+			keys[i] = key;
+			packed++;
+		}
+
+		private int slot(long key) {
+			long h = key * 0x9e3779b97f4a7c15L;
+			return (int)(h >>> 40) & (keys.length - 1);
+		}
+
+		private static boolean isPackable(String userId) {
+			return userId.length() > 0 && IdCodec.isPackableShortId(userId);
+		}
+	}
+}
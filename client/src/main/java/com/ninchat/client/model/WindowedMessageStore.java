@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.model;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A MessageStore that bounds the number of messages held in memory.</p>
+ *
+ * <ul>
+ *   <li>When a new message arrives, the oldest messages of the conversation are evicted so that at most
+ *   <code>window</code> messages remain.</li>
+ *   <li>When the total number of messages in the session exceeds <code>budget</code>, least recently viewed
+ *   conversations are trimmed to <code>retained</code> messages.</li>
+ * </ul>
+ *
+ * <p>History loaded on request is not trimmed to the window immediately. It is counted against the budget and
+ * the window is enforced again when the next new message arrives. A conversation that has lost messages reports
+ * {@link Conversation#isHistoryLoaded()} false, so the evicted range is fetched again with
+ * <code>load_history</code> when the conversation is opened.</p>
+ */
+public class WindowedMessageStore extends MessageStore {
+	private final static Logger logger = Logger.getLogger(WindowedMessageStore.class.getName());
+
+	public static final int DEFAULT_WINDOW = 200;
+	public static final int DEFAULT_BUDGET = 20000;
+	public static final int DEFAULT_RETAINED = 1;
+
+	private final int window;
+	private final int budget;
+	private final int retained;
+
+	private static class Entry {
+		int count;
+		/** Position in {@link #recency}. Grows towards the most recently viewed end. */
+		long order;
+	}
+
+	/** Message counts of conversations */
+	private final Map<Conversation, Entry> counts = new HashMap<Conversation, Entry>();
+
+	/**
+	 * Conversations with a count, least recently viewed first. A conversation that has not been viewed is placed by
+	 * the time it was first counted. Receiving or evicting messages does not change the order.
+	 */
+	private final LinkedHashSet<Conversation> recency = new LinkedHashSet<Conversation>();
+
+	private long nextOrder;
+
+	/**
+	 * Position of budget enforcement in {@link #recency}, so that consecutive enforcements do not scan the
+	 * conversations that have already been trimmed. Conversations before the cursor hold at most
+	 * <code>retained</code> messages: the cursor is reset when one of them grows or when the order changes.
+	 */
+	private Iterator<Conversation> victims;
+	private Conversation victim;
+
+	private int total;
+
+	public WindowedMessageStore() {
+		this(DEFAULT_WINDOW, DEFAULT_BUDGET, DEFAULT_RETAINED);
+	}
+
+	/**
+	 * @param window Maximum number of messages per conversation
+	 * @param budget Maximum number of messages in all conversations of the session
+	 * @param retained Number of latest messages that are kept when a conversation is trimmed to meet the budget
+	 */
+	public WindowedMessageStore(int window, int budget, int retained) {
+		if (window < 1 || budget < window || retained < 0 || retained > window) {
+			throw new IllegalArgumentException("Invalid limits: window=" + window + ", budget=" + budget + ", retained=" + retained);
+		}
+
+		this.window = window;
+		this.budget = budget;
+		this.retained = retained;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public int getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the number of messages currently held by all conversations.
+	 */
+	public synchronized int getTotal() {
+		return total;
+	}
+
+	@Override
+	protected synchronized void onMessagesReceived(Conversation conversation, int added) {
+		int count = add(conversation, added);
+
+		if (count > window) {
+			count = trim(conversation, count, count - window);
+		}
+
+		enforceBudget(conversation);
+	}
+
+	@Override
+	protected synchronized void onHistoryLoaded(Conversation conversation, int added) {
+		add(conversation, added);
+		enforceBudget(conversation);
+	}
+
+	@Override
+	protected synchronized void onViewed(Conversation conversation) {
+		Entry entry = counts.get(conversation);
+		if (entry != null) {
+			recency.remove(conversation);
+			recency.add(conversation); // Moves to the end
+			entry.order = nextOrder++;
+			resetVictims();
+		}
+	}
+
+	@Override
+	protected synchronized void onRemoved(Conversation conversation) {
+		Entry entry = counts.remove(conversation);
+		if (entry != null) {
+			total -= entry.count;
+			recency.remove(conversation);
+			resetVictims();
+		}
+	}
+
+	private int add(Conversation conversation, int added) {
+		Entry entry = counts.get(conversation);
+		if (entry == null) {
+			entry = new Entry();
+			entry.order = nextOrder++;
+			counts.put(conversation, entry);
+			recency.add(conversation);
+			resetVictims();
+
+		} else if (isPassed(entry)) {
+			resetVictims();
+		}
+
+		entry.count += added;
+		total += added;
+
+		return entry.count;
+	}
+
+	private int trim(Conversation conversation, int count, int excess) {
+		int evicted = evict(conversation, excess);
+
+		count -= evicted;
+		counts.get(conversation).count = count;
+		total -= evicted;
+
+		if (logger.isLoggable(Level.FINER)) logger.finer("Evicted " + evicted + " messages from " + conversation);
+
+		return count;
+	}
+
+	private void enforceBudget(Conversation current) {
+		if (total <= budget) {
+			return;
+		}
+
+		// Continues from the previous victim, which may still have messages to give up. Trimming does not change
+		// the order, so the cursor stays valid.
+		Conversation conversation = victim != null ? victim : nextVictim();
+
+		while (conversation != null) {
+			int count = counts.get(conversation).count;
+
+			if (conversation != current && count > retained) {
+				trim(conversation, count, Math.min(count - retained, total - budget));
+			}
+
+			if (total <= budget) {
+				break;
+			}
+
+			conversation = nextVictim();
+		}
+
+		// Still too much. The current conversation has to give up its oldest messages, too.
+		Entry entry = counts.get(current);
+		if (total > budget && entry != null && entry.count > retained) {
+			trim(current, entry.count, Math.min(entry.count - retained, total - budget));
+		}
+
+		if (entry != null && entry.count > retained && isPassed(entry)) {
+			// The current conversation was skipped, so the next enforcement has to see it again
+			resetVictims();
+		}
+
+		if (logger.isLoggable(Level.FINE)) logger.fine("Message budget enforced. Messages in memory: " + total);
+	}
+
+	/**
+	 * Advances the cursor
+	 *
+	 * @return the next conversation or null if the cursor is at the most recently viewed one
+	 */
+	private Conversation nextVictim() {
+		if (victims == null) {
+			victims = recency.iterator();
+		}
+		if (!victims.hasNext()) {
+			return null;
+		}
+		return victim = victims.next();
+	}
+
+	/**
+	 * @return true if the cursor has moved past the conversation
+	 */
+	private boolean isPassed(Entry entry) {
+		return victim != null && entry.order < counts.get(victim).order;
+	}
+
+	private void resetVictims() {
+		victims = null;
+		victim = null;
+	}
+}
@@ -25,14 +25,19 @@
  */
 package com.ninchat.client.transport;
 
+import com.ninchat.client.transport.actions.CloseSession;
 import com.ninchat.client.transport.actions.CreateSession;
 import com.ninchat.client.transport.actions.Ping;
+import com.ninchat.client.transport.actions.ResumeSession;
 import com.ninchat.client.transport.events.Error;
 import com.ninchat.client.transport.events.HistoryResults;
 import com.ninchat.client.transport.events.MessageReceived;
+import com.ninchat.client.transport.events.SessionCreated;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -91,6 +96,162 @@ public abstract class AbstractTransport {
 
 	protected boolean initialized;
 
+	/** Event and ack listeners are called through this executor if it is set */
+	protected volatile Executor listenerExecutor;
+
+	/** Canonicalizes repeated strings while events are decoded */
+	protected volatile StringPool stringPool = new StringPool();
+
+	/** Outbound actions are logged here if set */
+	protected volatile ActionLog actionLog;
+
+	/** Persists the resume state if set */
+	protected volatile SessionStateStore sessionStateStore;
+
+	/** Writes the resume state off the calling thread */
+	private final SessionStateWriter sessionStateWriter = new SessionStateWriter(SessionStateWriter.DEFAULT_WRITE_INTERVAL);
+
+	/** Last state that was handed to the writer. Unchanged states are not saved again. */
+	private SessionState savedSessionState;
+
+	/** Event id of a restored session state. Used for resume_session until an event has been received. */
+	protected volatile Long restoredEventId;
+
+	/** User of the session, saved with the session state */
+	protected volatile String sessionUserId;
+
+	/** If set, large maps of session_created are bound on demand */
+	protected volatile boolean streamSessionCreated;
+
+	/** Streams of session_created events that have not been taken by the model yet */
+	private final Map<Event, SessionCreatedStream> sessionCreatedStreams = new WeakHashMap<Event, SessionCreatedStream>();
+
+	public Executor getListenerExecutor() {
+		return listenerExecutor;
+	}
+
+	/**
+	 * Makes event listeners and ack listeners run on the given executor instead of the thread that receives events.
+	 * Listeners are submitted in the order the events arrive, so a single threaded executor sees them in that
+	 * order. Bookkeeping of the transport itself stays on the receiving thread.
+	 *
+	 * @param listenerExecutor An executor or null to call listeners directly
+	 */
+	public void setListenerExecutor(Executor listenerExecutor) {
+		this.listenerExecutor = listenerExecutor;
+	}
+
+	public ActionLog getActionLog() {
+		return actionLog;
+	}
+
+	/**
+	 * Makes the transport log outbound actions that change state on the server, such as send_message, until they
+	 * are acknowledged. Logged actions survive crashes, and are sent again by {@link #replayActionLog()} if the
+	 * same session is resumed.
+	 */
+	public void setActionLog(ActionLog actionLog) {
+		this.actionLog = actionLog;
+	}
+
+	/**
+	 * Called when a session has been established. Enqueues the actions that were left pending in the action log
+	 * if they belong to the current session and user, which is the case when a saved session is resumed. Actions
+	 * of any other session are discarded. Ack listeners of replayed actions are not restored.
+	 *
+	 * @return number of actions enqueued
+	 */
+	public int replayActionLog() {
+		ActionLog log = actionLog;
+		if (log == null) return 0;
+
+		List<Action> actions = log.claim(sessionId, sessionUserId);
+		for (Action action : actions) {
+			enqueue(action);
+		}
+
+		if (!actions.isEmpty()) {
+			logger.info("Replayed " + actions.size() + " action(s) from " + log.getFile());
+		}
+		return actions.size();
+	}
+
+	/**
+	 * Actions that only read, like describe_* and load_history, are not worth replaying without their ack
+	 * listeners. Session lifecycle actions belong to the transport that sent them.
+	 */
+	private static boolean isLogged(Action action) {
+		if (!action.isExpectActionId() || action instanceof ResumeSession || action instanceof CloseSession) {
+			return false;
+		}
+
+		String name = action.getActionName();
+		return !(name.startsWith("describe_") || name.startsWith("load_") || name.startsWith("get_") ||
+				name.startsWith("search") || "ping".equals(name));
+	}
+
+	public boolean isStreamSessionCreated() {
+		return streamSessionCreated;
+	}
+
+	/**
+	 * Makes the transport deliver session_created without its user_channels, user_dialogues, user_queues and
+	 * user_realms maps. The maps are read entry by entry from the {@link SessionCreatedStream} that
+	 * {@link #takeSessionCreatedStream(SessionCreated)} returns for the event.
+	 */
+	public void setStreamSessionCreated(boolean streamSessionCreated) {
+		this.streamSessionCreated = streamSessionCreated;
+	}
+
+	protected void attachSessionCreatedStream(SessionCreated event, SessionCreatedStream stream) {
+		synchronized (sessionCreatedStreams) {
+			sessionCreatedStreams.put(event, stream);
+		}
+	}
+
+	/**
+	 * Returns the stream of an event that was delivered without its large maps. The stream can be taken once.
+	 *
+	 * @return the stream or null if the maps of the event were bound as usual
+	 */
+	public SessionCreatedStream takeSessionCreatedStream(SessionCreated event) {
+		synchronized (sessionCreatedStreams) {
+			return sessionCreatedStreams.remove(event);
+		}
+	}
+
+	/**
+	 * Runs a listener call directly or through the listener executor
+	 */
+	protected void dispatch(Runnable call) {
+		Executor executor = listenerExecutor;
+		if (executor != null) {
+			executor.execute(call);
+		} else {
+			call.run();
+		}
+	}
+
+	/**
+	 * Returns the pool that decoded strings are resolved through. Its hit rate tells how much duplication was
+	 * avoided.
+	 */
+	public StringPool getStringPool() {
+		return stringPool;
+	}
+
+	/**
+	 * Replaces the string pool. A pool may be shared by several transports.
+	 *
+	 * @param stringPool New pool. Must not be null.
+	 */
+	public void setStringPool(StringPool stringPool) {
+		if (stringPool == null) {
+			throw new NullPointerException("stringPool");
+		}
+		this.stringPool = stringPool;
+	}
+
 	/**
 	 * Returns the number of unset actions
 	 *
@@ -162,14 +323,20 @@ public abstract class AbstractTransport {
 			action.setId(ai);
 		}
 
+		ActionLog log = actionLog;
+		if (log != null && isLogged(action)) {
+			action.logSequence = log.append(action);
+		}
+
 		if (shouldAcknowledgeEventId()) {
 			if (lastReceivedEvent != null && lastReceivedEvent.getId() != null) {
 				action.setEventId(lastReceivedEvent.getId());
 				lastAcknowledgedEvent = lastReceivedEvent;
+				saveSessionState();
 			}
 		}
 
-		action.registerTimeoutTask(timeoutTimer);
+		action.registerTimeoutTask(timeoutTimer, listenerExecutor);
 
 		synchronized (queue) {
 			/*
@@ -233,23 +400,44 @@ public abstract class AbstractTransport {
 	public void terminate() {
 		setStatus(Status.CLOSED);
 
+		final List<Action> cancelled;
 		synchronized (queue) {
-			for (Action action : queue) {
-				AckListener ackListener = action.getAckListener();
-				if (ackListener != null) {
-					ackListener.onCancel(action);
-				}
-			}
-
+			cancelled = new ArrayList<Action>(queue);
 			queue.clear();
 		}
 
+		// Listeners are called outside the queue lock and on the listener executor, like acknowledgements
+		for (final Action action : cancelled) {
+			action.cancelTimeoutTask();
+			final AckListener ackListener = action.getAckListener();
+			if (ackListener != null) {
+				action.setAckListener(null);
+
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						ackListener.onCancel(action);
+					}
+				});
+			}
+		}
+
 		if (timeoutTimer != null) {
 			timeoutTimer.cancel();
 		}
 
+		ActionLog log = actionLog;
+		if (log != null) {
+			// Cancelled actions stay in the log, but they are not replayed into another session
+			log.endSession();
+		}
+
+		// Writes a pending state and stops the writer thread
+		sessionStateWriter.stop();
+
 		lastReceivedEvent = null;
 		lastAcknowledgedEvent = null;
+		restoredEventId = null;
 
 		actionId.set(INITIAL_ACTION_ID);
 
@@ -273,12 +461,118 @@ public abstract class AbstractTransport {
 
 
 	/**
-	 * Sets sessionId for resume_session action
+	 * Sets sessionId for resume_session action. The state is saved to or cleared from the
+	 * {@link SessionStateStore}, if there is one.
 	 *
-	 * @param sessionId session id
+	 * @param sessionId session id or null if the session has ended
 	 */
 	public void setSessionId(String sessionId) {
 		this.sessionId = sessionId;
+
+		if (sessionId != null) {
+			saveSessionState();
+		} else {
+			restoredEventId = null;
+			clearSessionState();
+		}
+	}
+
+	public void setSessionUserId(String sessionUserId) {
+		this.sessionUserId = sessionUserId;
+	}
+
+	public SessionStateStore getSessionStateStore() {
+		return sessionStateStore;
+	}
+
+	public void setSessionStateStore(SessionStateStore sessionStateStore) {
+		this.sessionStateStore = sessionStateStore;
+	}
+
+	/**
+	 * Loads a saved session state and prepares the transport to resume that session. The next connection sends
+	 * resume_session before anything else. If the server does not know the session any more,
+	 * {@link TransportStatusListener#onInvalidSession(AbstractTransport)} is called as usual.
+	 *
+	 * @return the restored state or null if no state was saved
+	 */
+	public SessionState restoreSessionState() {
+		SessionStateStore store = sessionStateStore;
+		if (store == null) return null;
+
+		SessionState state;
+		try {
+			state = store.load();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Can not load session state", e);
+			return null;
+		}
+
+		if (state != null) {
+			sessionId = state.getSessionId();
+			sessionHost = state.getSessionHost();
+			sessionUserId = state.getUserId();
+			restoredEventId = state.getEventId();
+
+			logger.info("Restored " + state);
+		}
+
+		return state;
+	}
+
+	/**
+	 * Forgets a session that was restored with {@link #restoreSessionState()} and clears the store. Used when the
+	 * restored session is not going to be resumed.
+	 */
+	public void discardSessionState() {
+		sessionHost = null;
+		sessionUserId = null;
+		setSessionId(null);
+	}
+
+	/**
+	 * @return event id for resume_session or null if no event has been received
+	 */
+	protected Long getResumeEventId() {
+		Event e = lastReceivedEvent;
+		return e != null ? e.getId() : restoredEventId;
+	}
+
+	/**
+	 * Saves the resume state in the background if it has changed since the last save
+	 */
+	protected void saveSessionState() {
+		SessionStateStore store = sessionStateStore;
+		String s = sessionId;
+		if (store == null || s == null) return;
+
+		Event acknowledged = lastAcknowledgedEvent;
+		Long eventId = acknowledged != null ? acknowledged.getId() : restoredEventId;
+		SessionState state = new SessionState(s, sessionHost, sessionUserId, eventId != null ? eventId : 0);
+
+		synchronized (sessionStateWriter) {
+			if (state.equals(savedSessionState)) return;
+			savedSessionState = state;
+			sessionStateWriter.save(store, state);
+		}
+	}
+
+	private void clearSessionState() {
+		SessionStateStore store = sessionStateStore;
+		if (store == null) return;
+
+		synchronized (sessionStateWriter) {
+			savedSessionState = null;
+			sessionStateWriter.clear(store);
+		}
+	}
+
+	/**
+	 * Writes a pending session state to the store on the calling thread. Called on termination, and may be called
+	 * before the application exits.
+	 */
+	public void flushSessionState() {
+		sessionStateWriter.flush();
 	}
 
 	protected void setStatus(Status status) {
@@ -312,8 +606,7 @@ public abstract class AbstractTransport {
 	}
 
 
-	@SuppressWarnings("unchecked")
-	protected void onCompleteEvent(Event event) {
+	protected void onCompleteEvent(final Event event) {
 		if (logger.isLoggable(Level.FINER)) logger.finer("Complete event: " + event);
 
 		if (event instanceof Error) {
@@ -338,6 +631,16 @@ public abstract class AbstractTransport {
 			lastReceivedEvent = event;
 		}
 
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				callEventListeners(event);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private void callEventListeners(Event event) {
 		boolean eventHandled = false;
 
 		Set<TransportEventListener<? extends Event>> listeners = eventListeners.get(event.getClass());
@@ -378,28 +681,66 @@ public abstract class AbstractTransport {
 			existed = queue.remove(dummy);
 		}
 
+		if (existed && action.logSequence != 0) {
+			ActionLog log = actionLog;
+			if (log != null) {
+				log.remove(action.logSequence);
+			}
+		}
+
 		return existed ? action : null;
 	}
 
+	/**
+	 * Finds the action that an intermediate event of a batch responds to. The action is left in queue.
+	 *
+	 * @return pending action or null if event is not an intermediate event of a batch
+	 */
+	protected Action findBatchAction(Event event) {
+		if (event.getActionId() == null || isLastInBatch(event)) {
+			return null;
+		}
+
+		Action dummy = new DummyAction(event.getActionId());
+		Action action;
+
+		synchronized (queue) {
+			action = queue.ceiling(dummy);
+		}
+
+		return action != null && action.compareTo(dummy) == 0 ? action : null;
+	}
+
 	/**
 	 * History request causes multiple events with same action_id.
 	 *
 	 * @param event true if event was last in batch
 	 */
 	private boolean isLastInBatch(Event event) {
+		return getRemainingInBatch(event) <= 0;
+	}
+
+	/**
+	 * Returns the number of events that are still expected after the given event with the same action_id.
+	 *
+	 * @param event received event
+	 * @return remaining events, zero if event was last in batch
+	 */
+	private long getRemainingInBatch(Event event) {
 		// It would be nice if this behaviour was more generalized in json protocol. Something like "remaining_batch_length"
-		return !((
-				event instanceof MessageReceived &&
-						((MessageReceived)event).getHistoryLength() != null &&
-						((MessageReceived)event).getHistoryLength() > 0
-		) || (
-				event instanceof HistoryResults &&
-						((HistoryResults)event).getHistoryLength() != null &&
-						((HistoryResults)event).getHistoryLength() > 0)
-		);
-	}
-
-	protected void acknowledge(Action action, Event event) {
+		Long remaining = null;
+
+		if (event instanceof MessageReceived) {
+			remaining = ((MessageReceived)event).getHistoryLength();
+
+		} else if (event instanceof HistoryResults) {
+			remaining = ((HistoryResults)event).getHistoryLength();
+		}
+
+		return remaining != null ? remaining : 0;
+	}
+
+	protected void acknowledge(final Action action, final Event event) {
 		assert action != null && event != null;
 		assert action.getId() != null;
 		assert action.getId().equals(event.getActionId());
@@ -410,15 +751,44 @@ public abstract class AbstractTransport {
 		// TODO: Only on last response (if there are multiple with same event id)
 
 		action.cancelTimeoutTask();
-		AckListener ackListener = action.getAckListener();
+		final AckListener ackListener = action.getAckListener();
 		if (ackListener != null) {
-			if (event instanceof Error) {
-				ackListener.onError(action, (Error)event);
-			} else {
-				ackListener.onAcknowledge(action, event);
-			}
-
 			action.setAckListener(null); // Allow GC.
+
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					if (event instanceof Error) {
+						ackListener.onError(action, (Error)event);
+					} else {
+						ackListener.onAcknowledge(action, event);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Passes an intermediate event of a batch to the action's {@link PartialAckListener}. Action stays in queue
+	 * until the last event of the batch arrives.
+	 */
+	protected void acknowledgePartially(final Action action, final Event event) {
+		assert action != null && event != null;
+
+		// Batch is progressing. Don't let TimeoutMonitor interrupt a long one.
+		lastAcknowledgedActionTimestamp.set(elapsedTime());
+
+		AckListener ackListener = action.getAckListener();
+		if (ackListener instanceof PartialAckListener) {
+			final PartialAckListener partialAckListener = (PartialAckListener)ackListener;
+			final long remaining = getRemainingInBatch(event);
+
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					partialAckListener.onPartial(action, event, remaining);
+				}
+			});
 		}
 	}
 
@@ -31,6 +31,7 @@ import com.google.gson.annotations.SerializedName;
 import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +45,9 @@ public abstract class Action implements Comparable {
 
 	transient long sent = Long.MIN_VALUE;
 
+	/** Sequence number in the {@link ActionLog} or zero if not logged */
+	transient long logSequence;
+
 	/**
 	 * Null action id is treated as zero and is reserved for "immediate" actions like create_session.
 	 */
@@ -86,6 +90,15 @@ public abstract class Action implements Comparable {
 		this.sessionId = sessionId;
 	}
 
+	/**
+	 * Makes an action that was restored from an {@link ActionLog} ready to be enqueued again
+	 */
+	void clearIds() {
+		id = null;
+		eventId = null;
+		sessionId = null;
+	}
+
 	/**
 	 * Whether or not the action will be replied with an event that contains the given action id
 	 *
@@ -182,16 +195,32 @@ public abstract class Action implements Comparable {
 	}
 
 	class TimeoutTask extends TimerTask {
+		/** Listener is called through this executor if set */
+		private final Executor executor;
+
+		TimeoutTask(Executor executor) {
+			this.executor = executor;
+		}
+
 		@Override
 		public void run() {
 			// Avoid race conditions with volatile variable and nulling it before executing the listener
-			AckListener tmp = ackListener;
+			final AckListener tmp = ackListener;
 			ackListener = null;
 
 			if (tmp != null) {
 				logger.fine(this + " timed out. Calling listener: " + tmp.getClass().getName());
 				try {
-					tmp.onTimeout(Action.this);
+					if (executor != null) {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								tmp.onTimeout(Action.this);
+							}
+						});
+					} else {
+						tmp.onTimeout(Action.this);
+					}
 
 				} catch (Exception e) {
 					// Must caught all exception here. Otherwise Timer cancels all tasks and ceases to function.
@@ -201,7 +230,10 @@ public abstract class Action implements Comparable {
 		}
 	}
 
-	void registerTimeoutTask(Timer timer) {
+	/**
+	 * @param executor Executor that the timeout listener is called through, or null to call it on the timer thread
+	 */
+	void registerTimeoutTask(Timer timer, Executor executor) {
 		if (ackListener == null || ackListenerTimeout <= 0) {
 			// No op
 			return;
@@ -211,7 +243,7 @@ public abstract class Action implements Comparable {
 			throw new IllegalStateException("TimeoutTask is already created!");
 		}
 
-		timeoutTask = new TimeoutTask();
+		timeoutTask = new TimeoutTask(executor);
 		timer.schedule(timeoutTask, ackListenerTimeout);
 	}
 
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.transport;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.ninchat.client.transport.parameters.AudienceMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Write-ahead log of outbound actions. Actions are appended to a memory-mapped segment file when they are
+ * enqueued and marked done when the server acknowledges them. Actions that are still in the log when a new
+ * transport opens it can be replayed with {@link AbstractTransport#replayActionLog()}.</p>
+ *
+ * <p>The segment header names the session and the user that the logged actions belong to. Actions that were left
+ * over from an earlier session are replayed only when the same session is resumed. Otherwise they are
+ * discarded, so that they are never sent under another identity.</p>
+ *
+ * <p>Writes go to the mapped buffer, so they survive a crash of the process as soon as they have been made. A
+ * background thread forces dirty pages to disk at most once per commit interval, without putting an fsync on the
+ * path of each action. When the operating system crashes, records written since the last force may be lost or
+ * reach the disk only in part; a record that can not be decoded is dropped when it is replayed.</p>
+ *
+ * <p>The segment is rewound when no actions are pending, and rewritten with the pending actions only when it fills
+ * up. Delivery is at least once: an action that the server processed but did not acknowledge before the crash is
+ * sent again.</p>
+ */
+public final class ActionLog {
+	private final static Logger logger = Logger.getLogger(ActionLog.class.getName());
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final long DEFAULT_COMMIT_INTERVAL = 100;
+
+	private static final int MAGIC = 0x4e43414c; // "NCAL"
+	private static final int VERSION = 2;
+	/** Space for the session id and the user id in the header */
+	private static final int OWNER_SIZE = 256;
+	private static final int HEADER_SIZE = 8 + OWNER_SIZE;
+
+	private static final byte RECORD_ACTION = 1;
+	private static final byte RECORD_DONE = 2;
+
+	/** Record length, type and sequence */
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+
+	private final File file;
+	private final int segmentSize;
+	private final long commitInterval;
+
+	private final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(AudienceMetadata.class, new AudienceMetadata.AudienceMetadataTypeAdapter())
+			.create();
+
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+
+	/** Encoded pending actions by sequence, in append order */
+	private final Map<Long, byte[]> pending = new LinkedHashMap<Long, byte[]>();
+
+	/** Session and user of the logged actions */
+	private String ownerSessionId;
+	private String ownerUserId;
+
+	/** Actions from this sequence on have been logged during the current session */
+	private long liveSequence;
+
+	private long nextSequence = 1;
+	private boolean dirty;
+	private boolean closed;
+
+	private final Thread committer;
+
+	public ActionLog(File file) throws IOException {
+		this(file, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * Opens or creates the log
+	 *
+	 * @param segmentSize Size of the segment file in bytes. Pending actions must fit in it.
+	 * @param commitInterval Milliseconds between forcing appended records to disk
+	 */
+	public ActionLog(File file, int segmentSize, long commitInterval) throws IOException {
+		this.file = file;
+		this.segmentSize = segmentSize;
+		this.commitInterval = commitInterval;
+
+		map(file);
+		recover();
+		liveSequence = nextSequence;
+
+		committer = new Thread(new Committer(), "ActionLogCommitter");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private void map(File f) throws IOException {
+		raf = new RandomAccessFile(f, "rw");
+		if (raf.length() < segmentSize) {
+			raf.setLength(segmentSize);
+		}
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+	}
+
+	/**
+	 * Reads the records of an existing segment. Reading stops at the first incomplete record.
+	 */
+	private void recover() throws IOException {
+		buffer.position(0);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			reset();
+			return;
+		}
+
+		readOwner();
+		buffer.position(HEADER_SIZE);
+
+		try {
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining() - 1 - 8) {
+					buffer.position(start);
+					break;
+				}
+
+				byte type = buffer.get();
+				long sequence = buffer.getLong();
+				byte[] data = new byte[length];
+				buffer.get(data);
+
+				if (type == RECORD_ACTION) {
+					pending.put(sequence, data);
+				} else if (type == RECORD_DONE) {
+					pending.remove(sequence);
+				} else {
+					buffer.position(start);
+					break;
+				}
+
+				nextSequence = Math.max(nextSequence, sequence + 1);
+			}
+		} catch (BufferUnderflowException e) {
+			// Torn write at the end of the segment. The complete records before it stay valid.
+		}
+
+		terminateRecords();
+
+		if (!pending.isEmpty()) {
+			logger.info("ActionLog: " + pending.size() + " pending action(s) in " + file);
+		}
+	}
+
+	/**
+	 * Empties the segment
+	 */
+	private void reset() {
+		buffer.position(0);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		writeOwner();
+		buffer.position(HEADER_SIZE);
+		terminateRecords();
+		dirty = true;
+	}
+
+	private void readOwner() {
+		ownerSessionId = null;
+		ownerUserId = null;
+
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(ownerBytes()));
+			ownerSessionId = readString(in);
+			ownerUserId = readString(in);
+		} catch (IOException e) {
+			// No owner. Pending actions are never replayed.
+		}
+	}
+
+	private byte[] ownerBytes() {
+		byte[] bytes = new byte[OWNER_SIZE];
+		for (int i = 0; i < OWNER_SIZE; i++) {
+			bytes[i] = buffer.get(8 + i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the owner to the header without moving the position
+	 */
+	private void writeOwner() {
+		byte[] owner;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeString(out, ownerSessionId);
+			writeString(out, ownerUserId);
+			out.flush();
+			owner = bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e); // Not thrown by a ByteArrayOutputStream
+		}
+
+		if (owner.length > OWNER_SIZE) {
+			logger.warning("ActionLog: Session id and user id do not fit in the header");
+			owner = new byte[] { -1, -1, -1, -1, -1, -1, -1, -1 }; // Two nulls
+		}
+
+		for (int i = 0; i < owner.length; i++) {
+			buffer.put(8 + i, owner[i]);
+		}
+	}
+
+	/**
+	 * Writes an end marker at the current position without moving it
+	 */
+	private void terminateRecords() {
+		if (buffer.remaining() >= 4) {
+			buffer.putInt(buffer.position(), 0);
+		}
+	}
+
+	/**
+	 * Appends an action to the log
+	 *
+	 * @return sequence number that identifies the action in the log, or zero if it could not be logged
+	 */
+	public synchronized long append(Action action) {
+		if (closed) return 0;
+
+		byte[] data;
+		try {
+			data = encode(action);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "ActionLog: Can not encode " + action, e);
+			return 0;
+		}
+
+		long sequence = nextSequence++;
+		if (!write(RECORD_ACTION, sequence, data)) {
+			logger.warning("ActionLog: Segment is full. " + action + " is not logged.");
+			return 0;
+		}
+
+		pending.put(sequence, data);
+		return sequence;
+	}
+
+	/**
+	 * Marks a logged action done
+	 */
+	public synchronized void remove(long sequence) {
+		if (closed || pending.remove(sequence) == null) return;
+
+		if (pending.isEmpty()) {
+			reset();
+		} else {
+			write(RECORD_DONE, sequence, new byte[] { 0 });
+		}
+	}
+
+	/**
+	 * Makes the log belong to an established session. Pending actions of an earlier session are taken out of the
+	 * log: they are returned if the session is the same one, and discarded otherwise. Actions that have been
+	 * logged during the current session are kept.
+	 *
+	 * @return decoded actions to replay in the order they were appended. They are logged again when they are
+	 *         enqueued. Actions that can not be decoded are dropped.
+	 */
+	synchronized List<Action> claim(String sessionId, String userId) {
+		boolean resumed = sessionId != null && userId != null &&
+				sessionId.equals(ownerSessionId) && userId.equals(ownerUserId);
+
+		List<Action> actions = new ArrayList<Action>();
+		List<Long> removed = new ArrayList<Long>();
+
+		for (Iterator<Map.Entry<Long, byte[]>> i = pending.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<Long, byte[]> entry = i.next();
+			if (entry.getKey() >= liveSequence) continue;
+
+			i.remove();
+			removed.add(entry.getKey());
+			if (!resumed) continue;
+
+			try {
+				actions.add(decode(entry.getValue()));
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "ActionLog: Dropping an action that can not be decoded", e);
+			}
+		}
+
+		if (!resumed && !removed.isEmpty()) {
+			logger.info("ActionLog: Discarded " + removed.size() + " action(s) of session " + ownerSessionId);
+		}
+
+		ownerSessionId = sessionId;
+		ownerUserId = userId;
+
+		if (!closed) {
+			if (pending.isEmpty()) {
+				reset();
+			} else {
+				for (Long sequence : removed) {
+					write(RECORD_DONE, sequence, new byte[] { 0 });
+				}
+				writeOwner();
+				dirty = true;
+			}
+		}
+
+		return actions;
+	}
+
+	/**
+	 * Marks the end of the current session. Actions that are pending now are not replayed into another session.
+	 */
+	synchronized void endSession() {
+		liveSequence = nextSequence;
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Forces pending writes to disk and closes the file. Pending actions stay in the file.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			buffer.force();
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "ActionLog: Can not close " + file, e);
+			}
+			notifyAll();
+		}
+
+		committer.interrupt();
+	}
+
+	private boolean write(byte type, long sequence, byte[] data) {
+		int needed = RECORD_HEADER_SIZE + data.length + 4; // With the end marker
+		if (buffer.remaining() < needed) {
+			compact();
+			if (buffer.remaining() < needed) return false;
+		}
+
+		// The length is written last, so a record that was torn by a crash of the process is not read as complete.
+		// The mapping gives no such ordering when the operating system crashes.
+		int start = buffer.position();
+		buffer.position(start + 4);
+		buffer.put(type);
+		buffer.putLong(sequence);
+		buffer.put(data);
+		terminateRecords();
+		buffer.putInt(start, data.length);
+
+		dirty = true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Rewrites the segment with the pending actions only. The new segment is written to a separate file that
+	 * replaces the old one, so a crash during compaction leaves one of them intact.
+	 */
+	private void compact() {
+		File tmp = new File(file.getPath() + ".compact");
+
+		MappedByteBuffer oldBuffer = buffer;
+		RandomAccessFile oldRaf = raf;
+		try {
+			map(tmp);
+			reset();
+			for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+				byte[] data = entry.getValue();
+				if (buffer.remaining() < RECORD_HEADER_SIZE + data.length + 4) {
+					throw new IOException("Pending actions do not fit in the segment");
+				}
+				int start = buffer.position();
+				buffer.position(start + 4);
+				buffer.put(RECORD_ACTION);
+				buffer.putLong(entry.getKey());
+				buffer.put(data);
+				buffer.putInt(start, data.length);
+			}
+			terminateRecords();
+			buffer.force();
+
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Can not replace " + file);
+			}
+			oldRaf.close();
+
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "ActionLog: Compaction failed", e);
+			try {
+				raf.close();
+			} catch (IOException ignored) { }
+			tmp.delete();
+
+			buffer = oldBuffer;
+			raf = oldRaf;
+		}
+	}
+
+	private byte[] encode(Action action) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		writeString(out, action.getClass().getName());
+		writeString(out, gson.toJson(action));
+
+		Payload[] payloads = action instanceof PayloadAction ? ((PayloadAction)action).getPayloads() : null;
+		out.writeInt(payloads != null ? payloads.length : -1);
+		if (payloads != null) {
+			for (Payload payload : payloads) {
+				writeString(out, payload != null ? payload.getClass().getName() : null);
+				if (payload != null) {
+					writeString(out, gson.toJson(payload));
+				}
+			}
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private Action decode(byte[] data) throws IOException, ClassNotFoundException, JsonParseException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+		Class<? extends Action> actionClass = Class.forName(readString(in)).asSubclass(Action.class);
+		Action action = gson.fromJson(readString(in), actionClass);
+
+		// Ids belong to the transport that sent the action
+		action.clearIds();
+
+		int count = in.readInt();
+		if (count >= 0 && action instanceof PayloadAction) {
+			Payload[] payloads = new Payload[count];
+			for (int i = 0; i < count; i++) {
+				String payloadClass = readString(in);
+				if (payloadClass != null) {
+					payloads[i] = gson.fromJson(readString(in), Class.forName(payloadClass).asSubclass(Payload.class));
+				}
+			}
+			((PayloadAction)action).setPayloads(payloads);
+		}
+
+		return action;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Forces appended records to disk in groups
+	 */
+	private class Committer implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					MappedByteBuffer toForce;
+					synchronized (ActionLog.this) {
+						while (!dirty && !closed) {
+							ActionLog.this.wait();
+						}
+						if (closed) return;
+
+						dirty = false;
+						toForce = buffer;
+					}
+
+					toForce.force();
+
+					Thread.sleep(commitInterval);
+				}
+			} catch (InterruptedException e) {
+				// Closed
+			}
+		}
+	}
+}
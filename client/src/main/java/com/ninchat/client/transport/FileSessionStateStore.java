@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Keeps the session state in a properties file. The file is replaced through a temporary file that is synced to
+ * disk first, so a crash while saving leaves the previous state intact.
+ */
+public class FileSessionStateStore implements SessionStateStore {
+	private static final String SESSION_ID = "session_id";
+	private static final String SESSION_HOST = "session_host";
+	private static final String USER_ID = "user_id";
+	private static final String EVENT_ID = "event_id";
+
+	private final File file;
+
+	public FileSessionStateStore(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The previous state while it is being replaced on platforms where rename does not replace files
+	 */
+	private File getBackupFile() {
+		return new File(file.getPath() + ".bak");
+	}
+
+	@Override
+	public synchronized SessionState load() throws IOException {
+		File source = file;
+		if (!source.exists()) {
+			// Crashed while replacing the file?
+			source = getBackupFile();
+			if (!source.exists()) {
+				return null;
+			}
+		}
+
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(source);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		String sessionId = properties.getProperty(SESSION_ID);
+		String eventId = properties.getProperty(EVENT_ID);
+		if (sessionId == null || eventId == null) {
+			return null;
+		}
+
+		try {
+			return new SessionState(sessionId, properties.getProperty(SESSION_HOST), properties.getProperty(USER_ID),
+					Long.parseLong(eventId));
+
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid event id in " + source + ": " + eventId);
+		}
+	}
+
+	@Override
+	public synchronized void save(SessionState state) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(SESSION_ID, state.getSessionId());
+		if (state.getSessionHost() != null) {
+			properties.setProperty(SESSION_HOST, state.getSessionHost());
+		}
+		if (state.getUserId() != null) {
+			properties.setProperty(USER_ID, state.getUserId());
+		}
+		properties.setProperty(EVENT_ID, Long.toString(state.getEventId()));
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, null);
+			out.flush();
+			out.getFD().sync(); // The new state must be on disk before it replaces the old one
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			// Windows does not replace an existing file. The old one is moved aside first and removed only after
+			// the new one is in place, so that load() finds one of them after a crash.
+			File backup = getBackupFile();
+			if (backup.exists() && !backup.delete()) {
+				throw new IOException("Can not delete " + backup);
+			}
+			if (!file.renameTo(backup) || !tmp.renameTo(file)) {
+				throw new IOException("Can not replace " + file);
+			}
+			backup.delete();
+		}
+	}
+
+	@Override
+	public synchronized void clear() throws IOException {
+		File backup = getBackupFile();
+		if (backup.exists() && !backup.delete()) {
+			throw new IOException("Can not delete " + backup);
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Can not delete " + file);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.transport;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.ninchat.client.transport.attributes.RealmAttrs;
+import com.ninchat.client.transport.parameters.UserChannels;
+import com.ninchat.client.transport.parameters.UserDialogues;
+import com.ninchat.client.transport.parameters.UserQueues;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The large maps of a session_created event that are bound entry by entry on demand. When streaming is enabled
+ * with {@link AbstractTransport#setStreamSessionCreated(boolean)}, the event itself is delivered without these maps
+ * and the receiver reads them from the stream instead. This way the session can be established before thousands
+ * of channels and dialogues have been bound.
+ * <p>
+ * Each iterator reads the original frame independently. Iterators are not thread safe.
+ */
+public final class SessionCreatedStream {
+	static final String USER_CHANNELS = "user_channels";
+	static final String USER_DIALOGUES = "user_dialogues";
+	static final String USER_QUEUES = "user_queues";
+	static final String USER_REALMS = "user_realms";
+
+	private final String frame;
+	private final Gson gson;
+
+	SessionCreatedStream(String frame, Gson gson) {
+		this.frame = frame;
+		this.gson = gson;
+	}
+
+	/**
+	 * @return true if the field of session_created is left to the stream
+	 */
+	static boolean isStreamed(String name) {
+		return USER_CHANNELS.equals(name) || USER_DIALOGUES.equals(name) ||
+				USER_QUEUES.equals(name) || USER_REALMS.equals(name);
+	}
+
+	public Iterator<Map.Entry<String, RealmAttrs>> realms() {
+		return new EntryIterator<RealmAttrs>(USER_REALMS, RealmAttrs.class);
+	}
+
+	public Iterator<Map.Entry<String, UserChannels.Parameters>> channels() {
+		return new EntryIterator<UserChannels.Parameters>(USER_CHANNELS, UserChannels.Parameters.class);
+	}
+
+	public Iterator<Map.Entry<String, UserDialogues.Parameters>> dialogues() {
+		return new EntryIterator<UserDialogues.Parameters>(USER_DIALOGUES, UserDialogues.Parameters.class);
+	}
+
+	public Iterator<Map.Entry<String, UserQueues.Parameters>> queues() {
+		return new EntryIterator<UserQueues.Parameters>(USER_QUEUES, UserQueues.Parameters.class);
+	}
+
+	private class EntryIterator<V> implements Iterator<Map.Entry<String, V>> {
+		private final String field;
+		private final Class<V> valueClass;
+
+		private JsonReader reader;
+		private boolean exhausted;
+
+		private EntryIterator(String field, Class<V> valueClass) {
+			this.field = field;
+			this.valueClass = valueClass;
+		}
+
+		/**
+		 * Positions the reader at the first entry of the field
+		 */
+		private void open() throws IOException {
+			reader = new JsonReader(new StringReader(frame));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (field.equals(reader.nextName())) {
+					if (reader.peek() == JsonToken.NULL) {
+						break;
+					}
+					reader.beginObject();
+					return;
+				}
+				reader.skipValue();
+			}
+			exhausted = true;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (exhausted) return false;
+
+			try {
+				if (reader == null) {
+					open();
+					if (exhausted) return false;
+				}
+
+				if (!reader.hasNext()) {
+					exhausted = true;
+					reader.close();
+				}
+				return !exhausted;
+
+			} catch (IOException e) {
+				throw new JsonSyntaxException("Can not read " + field, e);
+			}
+		}
+
+		@Override
+		public Map.Entry<String, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			try {
+				String key = reader.nextName();
+				V value = gson.fromJson(reader, valueClass);
+				return new AbstractMap.SimpleImmutableEntry<String, V>(key, value);
+
+			} catch (IOException e) {
+				throw new JsonSyntaxException("Can not read " + field, e);
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
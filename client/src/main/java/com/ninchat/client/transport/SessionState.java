@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.transport;
+
+/**
+ * What is needed to resume a session in another process: the session id, the host that serves the session, the
+ * user of the session and the id of the last acknowledged event.
+ */
+public final class SessionState {
+	private final String sessionId;
+	private final String sessionHost;
+	private final String userId;
+	private final long eventId;
+
+	public SessionState(String sessionId, String sessionHost, String userId, long eventId) {
+		if (sessionId == null) {
+			throw new IllegalArgumentException("sessionId is required");
+		}
+
+		this.sessionId = sessionId;
+		this.sessionHost = sessionHost;
+		this.userId = userId;
+		this.eventId = eventId;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * @return session host or null if the primary host should be used
+	 */
+	public String getSessionHost() {
+		return sessionHost;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public long getEventId() {
+		return eventId;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof SessionState)) return false;
+
+		SessionState s = (SessionState)o;
+		return sessionId.equals(s.sessionId) && eventId == s.eventId &&
+				(sessionHost != null ? sessionHost.equals(s.sessionHost) : s.sessionHost == null) &&
+				(userId != null ? userId.equals(s.userId) : s.userId == null);
+	}
+
+	@Override
+	public int hashCode() {
+		return sessionId.hashCode() * 31 + (int)(eventId ^ (eventId >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return "SessionState{" +
+				"sessionId='" + sessionId + '\'' +
+				", sessionHost='" + sessionHost + '\'' +
+				", userId='" + userId + '\'' +
+				", eventId=" + eventId +
+				'}';
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ninchat.client.transport;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes session states to a {@link SessionStateStore} on a background thread. Only the latest state is written:
+ * a save or clear that is requested while an earlier one is pending replaces it. Writes are made at most once per
+ * write interval. The thread runs until {@link #stop()}; a later request starts a new one.
+ */
+final class SessionStateWriter {
+	private final static Logger logger = Logger.getLogger(SessionStateWriter.class.getName());
+
+	static final long DEFAULT_WRITE_INTERVAL = 1000;
+
+	private final long writeInterval;
+
+	private boolean pending;
+	private SessionStateStore pendingStore;
+	/** Null clears the store */
+	private SessionState pendingState;
+
+	/** Serializes writes of the background thread and {@link #flush()} */
+	private final Object writeLock = new Object();
+
+	/** The current background thread. A thread that is no longer current exits. */
+	private Thread thread;
+
+	SessionStateWriter(long writeInterval) {
+		this.writeInterval = writeInterval;
+	}
+
+	synchronized void save(SessionStateStore store, SessionState state) {
+		request(store, state);
+	}
+
+	synchronized void clear(SessionStateStore store) {
+		request(store, null);
+	}
+
+	private void request(SessionStateStore store, SessionState state) {
+		pending = true;
+		pendingStore = store;
+		pendingState = state;
+
+		if (thread == null) {
+			thread = new Thread(new Writer(), "SessionStateWriter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Stops the background thread and writes a pending state on the calling thread
+	 */
+	void stop() {
+		synchronized (this) {
+			thread = null;
+			notifyAll();
+		}
+
+		flush();
+	}
+
+	/**
+	 * Writes a pending state on the calling thread
+	 */
+	void flush() {
+		synchronized (writeLock) {
+			writePending();
+		}
+	}
+
+	private void writePending() {
+		SessionStateStore store;
+		SessionState state;
+
+		synchronized (this) {
+			if (!pending) return;
+			pending = false;
+			store = pendingStore;
+			state = pendingState;
+			pendingStore = null;
+			pendingState = null;
+		}
+
+		try {
+			if (state != null) {
+				store.save(state);
+			} else {
+				store.clear();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Can not " + (state != null ? "save" : "clear") + " session state", e);
+		}
+	}
+
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			Thread current = Thread.currentThread();
+
+			try {
+				while (true) {
+					synchronized (SessionStateWriter.this) {
+						while (!pending && thread == current) {
+							SessionStateWriter.this.wait();
+						}
+						if (thread != current) return;
+					}
+
+					synchronized (writeLock) {
+						writePending();
+					}
+
+					// Waits for the write interval unless stopped
+					synchronized (SessionStateWriter.this) {
+						long until = System.currentTimeMillis() + writeInterval;
+						for (long remaining = writeInterval; remaining > 0 && thread == current;
+						     remaining = until - System.currentTimeMillis()) {
+							SessionStateWriter.this.wait(remaining);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// Stopped
+			}
+		}
+	}
+}
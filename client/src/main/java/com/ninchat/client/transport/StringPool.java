@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2013, Somia Reality Oy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ninchat.client.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Canonicalizes strings that repeat across events, such as user ids, user names and message types. The transport
+ * resolves short strings through its pool while decoding, so equal values share a single instance.</p>
+ *
+ * <p>The pool is bounded and keeps its strings in two generations of up to half of the entries each. When the newer
+ * generation fills up, the older one is dropped and the newer one takes its place. A string that is found in the
+ * older generation is moved to the newer one, so strings that keep repeating stay in the pool while unique values,
+ * such as message ids, are evicted.</p>
+ */
+public class StringPool {
+	public static final int DEFAULT_MAX_ENTRIES = 8192;
+	public static final int DEFAULT_MAX_LENGTH = 64;
+
+	/** Strings added or looked up since the last rotation */
+	private Map<String, String> recent = new HashMap<String, String>();
+	/** Generation before the last rotation */
+	private Map<String, String> older = new HashMap<String, String>();
+
+	private final int maxEntries;
+	private final int maxLength;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public StringPool() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param maxEntries Maximum number of distinct strings held by the pool
+	 * @param maxLength Longer strings are not pooled
+	 */
+	public StringPool(int maxEntries, int maxLength) {
+		if (maxEntries < 2) {
+			throw new IllegalArgumentException("Pool must hold at least two entries!");
+		}
+
+		this.maxEntries = maxEntries;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param s A string or null
+	 * @return a canonical instance equal to the string, or the string itself if it can not be pooled
+	 */
+	public String intern(String s) {
+		if (s == null || s.length() > maxLength) {
+			return s;
+		}
+
+		synchronized (this) {
+			String canonical = recent.get(s);
+			if (canonical != null) {
+				hits.incrementAndGet();
+				return canonical;
+			}
+
+			canonical = older.remove(s);
+			if (canonical != null) {
+				hits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+				canonical = s;
+			}
+
+			if (recent.size() >= maxEntries / 2) {
+				older = recent;
+				recent = new HashMap<String, String>();
+			}
+			recent.put(canonical, canonical);
+			return canonical;
+		}
+	}
+
+	/**
+	 * @return number of lookups that resolved to an existing instance
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups that did not find an existing instance
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return share of lookups that were deduplicated, between 0 and 1
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total > 0 ? (double)h / total : 0;
+	}
+
+	/**
+	 * @return number of distinct strings in the pool
+	 */
+	public synchronized int size() {
+		return recent.size() + older.size();
+	}
+
+	public synchronized void clear() {
+		recent.clear();
+		older.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "StringPool{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+	}
+}
@@ -28,9 +28,12 @@ package com.ninchat.client.transport;
 
 import com.google.gson.*;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.ninchat.client.transport.actions.CloseSession;
 import com.ninchat.client.transport.actions.ResumeSession;
 import com.ninchat.client.transport.events.MessageReceived;
+import com.ninchat.client.transport.events.SessionCreated;
 import com.ninchat.client.transport.parameters.AudienceMetadata;
 import com.ninchat.client.transport.payloads.MessagePayload;
 
@@ -67,8 +70,12 @@ public class WebSocketTransport extends AbstractTransport {
 	private volatile TimeoutMonitor timeoutMonitor;
 	private volatile EventAcknowledger eventAcknowledger;
 
+	/** Decodes event headers. Strings are resolved through the string pool. */
 	private final Gson gson;
 
+	/** Decodes payloads, which mostly consist of unique message texts */
+	private final Gson payloadGson;
+
 	private String currentHost;
 
 	/**
@@ -85,6 +92,10 @@ public class WebSocketTransport extends AbstractTransport {
 	public WebSocketTransport() {
 		gson = new GsonBuilder()
 				.registerTypeAdapter(AudienceMetadata.class, new AudienceMetadata.AudienceMetadataTypeAdapter()) // TODO: Replace this dependency with more dynamic solution
+				.registerTypeAdapter(String.class, new PooledStringAdapter())
+				.create();
+		payloadGson = new GsonBuilder()
+				.registerTypeAdapter(AudienceMetadata.class, new AudienceMetadata.AudienceMetadataTypeAdapter())
 				.create();
 		init();
 	}
@@ -127,6 +138,8 @@ public class WebSocketTransport extends AbstractTransport {
 			logger.log(Level.FINE, "Can not terminate", e);
 		}
 
+		logger.fine("terminate(): " + stringPool + ", hit rate " + stringPool.getHitRate());
+
 		super.terminate();
 	}
 
@@ -262,7 +275,7 @@ public class WebSocketTransport extends AbstractTransport {
 
 					if (payloadClass != null) {
 						try {
-							pe.payloads[pe.payloads.length - payloadFramesLeft] = gson.fromJson(text, payloadClass);
+							pe.payloads[pe.payloads.length - payloadFramesLeft] = payloadGson.fromJson(text, payloadClass);
 
 						} catch (JsonSyntaxException e) {
 							logger.log(Level.WARNING, "Can not parse JSON", e);
@@ -335,7 +348,11 @@ public class WebSocketTransport extends AbstractTransport {
 					return;
 				}
 
-				currentEvent = gson.fromJson(text, eventClass);
+				if (eventClass == SessionCreated.class && streamSessionCreated) {
+					currentEvent = bindSessionCreated(text);
+				} else {
+					currentEvent = gson.fromJson(text, eventClass);
+				}
 				currentEvent.setReceived(elapsedTime());
 				if (currentEvent instanceof PayloadEvent) {
 					((PayloadEvent)currentEvent).payloads = new Payload[payloadFramesLeft];
@@ -366,8 +383,9 @@ public class WebSocketTransport extends AbstractTransport {
 		}
 
 		if (payloadFramesLeft <= 0) {
-			// First remove action from queue
+			// First remove action from queue. Intermediate events of a batch leave it there.
 			Action action = removeActionFromQueue(currentEvent);
+			Action batchAction = action == null ? findBatchAction(currentEvent) : null;
 
 			// Then call generic listeners that are bound to transport and model
 			onCompleteEvent(currentEvent);
@@ -376,9 +394,35 @@ public class WebSocketTransport extends AbstractTransport {
 			// listener gets a notification.
 			if (action != null && action.isExpectActionId()) {
 				acknowledge(action, currentEvent);
+
+			} else if (batchAction != null) {
+				acknowledgePartially(batchAction, currentEvent);
+			}
+		}
+
+	}
+
+	/**
+	 * Binds session_created without the fields that are left to a {@link SessionCreatedStream}
+	 */
+	private SessionCreated bindSessionCreated(String text) throws IOException {
+		JsonParser parser = new JsonParser();
+		JsonObject header = new JsonObject();
+
+		JsonReader reader = new JsonReader(new StringReader(text));
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (SessionCreatedStream.isStreamed(name)) {
+				reader.skipValue();
+			} else {
+				header.add(name, parser.parse(reader));
 			}
 		}
 
+		SessionCreated event = gson.fromJson(header, SessionCreated.class);
+		attachSessionCreatedStream(event, new SessionCreatedStream(text, gson));
+		return event;
 	}
 
 	@Override
@@ -690,14 +734,16 @@ public class WebSocketTransport extends AbstractTransport {
 							reconnectDelay *= 1.5;
 
 						} else if (status == Status.OPENED) {
-							if (sessionId != null && lastReceivedEvent != null) {
+							Long resumeEventId = getResumeEventId();
+							if (sessionId != null && resumeEventId != null) {
 								logger.fine("QueueHog: Resuming session");
-								// If connection was opened and session is is present
+								// If connection was opened and session is is present. The session may also have
+								// been restored from a SessionStateStore after a restart.
 
 								try {
 									Action r = new ResumeSession();
 									r.setSessionId(sessionId);
-									r.setEventId(lastReceivedEvent.getId());
+									r.setEventId(resumeEventId);
 									JsonElement element = gson.toJsonTree(r);
 									element.getAsJsonObject().addProperty("action", r.getActionName());
 
@@ -804,8 +850,27 @@ public class WebSocketTransport extends AbstractTransport {
 		}
 	}
 
-}
-
-
 
+	/**
+	 * Reads strings through the current {@link StringPool}. Also applies to map keys.
+	 */
+	private class PooledStringAdapter extends TypeAdapter<String> {
+		@Override
+		public void write(JsonWriter out, String value) throws IOException {
+			out.value(value);
+		}
 
+		@Override
+		public String read(JsonReader in) throws IOException {
+			JsonToken token = in.peek();
+			if (token == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			if (token == JsonToken.BOOLEAN) {
+				return Boolean.toString(in.nextBoolean());
+			}
+			return stringPool.intern(in.nextString());
+		}
+	}
+}